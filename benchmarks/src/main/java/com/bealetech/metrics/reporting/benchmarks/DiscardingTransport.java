@@ -0,0 +1,35 @@
+package com.bealetech.metrics.reporting.benchmarks;
+
+import com.bealetech.metrics.reporting.StatsdTransport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A transport which drops every payload, so that benchmarks measure encoding alone.
+ */
+final class DiscardingTransport implements StatsdTransport {
+    long bytes;
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void send(ByteBuffer payload) {
+        bytes += payload.remaining();
+        payload.position(payload.limit());
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return "discard:";
+    }
+}
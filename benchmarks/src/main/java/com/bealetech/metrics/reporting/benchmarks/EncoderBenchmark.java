@@ -0,0 +1,71 @@
+package com.bealetech.metrics.reporting.benchmarks;
+
+import com.bealetech.metrics.reporting.Statsd;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a single line with {@link Statsd#send}, with datagrams discarded rather than
+ * sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncoderBenchmark {
+    private static final String NAME = "bench.service.component.request timer.p99";
+
+    private final DiscardingTransport transport = new DiscardingTransport();
+    private Statsd statsd;
+    private byte[] encodedName;
+
+    @Setup
+    public void setUp() throws IOException {
+        statsd = new Statsd(transport);
+        statsd.connect();
+        encodedName = NAME.replace(' ', '-').getBytes("UTF-8");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        statsd.close();
+    }
+
+    @Benchmark
+    public long sendEncodedNameLongValue() throws IOException {
+        statsd.send(encodedName, 1234567L, Statsd.StatType.GAUGE);
+        return transport.bytes;
+    }
+
+    @Benchmark
+    public long sendEncodedNameDoubleValue() throws IOException {
+        statsd.send(encodedName, 1234.5678, Statsd.StatType.TIMER);
+        return transport.bytes;
+    }
+
+    @Benchmark
+    public long sendStringNameDoubleValue() throws IOException {
+        statsd.send(NAME, 1234.5678, Statsd.StatType.TIMER);
+        return transport.bytes;
+    }
+
+    @Benchmark
+    public long sendStringNameStringValue() throws IOException {
+        statsd.send(NAME, "1234.57", Statsd.StatType.TIMER);
+        return transport.bytes;
+    }
+}
@@ -0,0 +1,105 @@
+package com.bealetech.metrics.reporting.benchmarks;
+
+import com.bealetech.metrics.reporting.DatagramChannelTransport;
+import com.bealetech.metrics.reporting.DatagramSocketTransport;
+import com.bealetech.metrics.reporting.Statsd;
+import com.bealetech.metrics.reporting.StatsdTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures one report's worth of lines, about ten full datagrams, sent over UDP to a sink on the
+ * loopback interface, from {@link Statsd#connect()} to {@link Statsd#close()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FlushBenchmark {
+    private static final int LINES = 320;
+
+    @Param({"channel", "socket"})
+    String transport;
+
+    private DatagramChannel sink;
+    private Thread drainer;
+    private final AtomicLong received = new AtomicLong();
+
+    private Statsd statsd;
+    private byte[][] names;
+
+    @Setup
+    public void setUp() throws IOException {
+        sink = DatagramChannel.open();
+        sink.socket().setReceiveBufferSize(1 << 22);
+        sink.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(Statsd.MAX_UDP_PAYLOAD_SIZE);
+                try {
+                    while (true) {
+                        buffer.clear();
+                        sink.receive(buffer);
+                        received.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // the sink was closed
+                }
+            }
+        }, "loopback-sink");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        final int port = sink.socket().getLocalPort();
+        final StatsdTransport statsdTransport = "channel".equals(transport) ?
+                new DatagramChannelTransport("127.0.0.1", port) :
+                new DatagramSocketTransport("127.0.0.1", port);
+        statsd = new Statsd(statsdTransport);
+
+        names = new byte[LINES][];
+        for (int i = 0; i < LINES; i++) {
+            names[i] = ("bench.service.component.timer" + i + ".p99").getBytes("UTF-8");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        statsd.shutdown();
+        sink.close();
+        drainer.join(TimeUnit.SECONDS.toMillis(1));
+    }
+
+    @Benchmark
+    public long flush() throws IOException {
+        statsd.connect();
+        try {
+            for (int i = 0; i < LINES; i++) {
+                statsd.send(names[i], 1234.5678, Statsd.StatType.TIMER);
+            }
+        } finally {
+            statsd.close();
+        }
+        return statsd.getPacketsSent();
+    }
+}
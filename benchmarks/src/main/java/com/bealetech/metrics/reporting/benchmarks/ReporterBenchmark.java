@@ -0,0 +1,96 @@
+package com.bealetech.metrics.reporting.benchmarks;
+
+import com.bealetech.metrics.reporting.Statsd;
+import com.bealetech.metrics.reporting.StatsdReporter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full {@link StatsdReporter#report()} of a registry holding equal numbers of gauges,
+ * counters, histograms, meters and timers, with datagrams discarded rather than sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReporterBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    int metrics;
+
+    private final DiscardingTransport transport = new DiscardingTransport();
+    private StatsdReporter reporter;
+
+    @Setup
+    public void setUp() {
+        final MetricRegistry registry = new MetricRegistry();
+        final Random random = new Random(42);
+        for (int i = 0; i < metrics; i++) {
+            final String name = MetricRegistry.name("service", "component" + (i % 100),
+                    "metric" + i);
+            switch (i % 5) {
+                case 0:
+                    final long value = i;
+                    registry.register(name, new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return value;
+                        }
+                    });
+                    break;
+                case 1:
+                    registry.counter(name).inc(i);
+                    break;
+                case 2:
+                    final Histogram histogram = registry.histogram(name);
+                    for (int j = 0; j < 100; j++) {
+                        histogram.update(random.nextInt(1000));
+                    }
+                    break;
+                case 3:
+                    registry.meter(name).mark(i);
+                    break;
+                default:
+                    final Timer timer = registry.timer(name);
+                    for (int j = 0; j < 100; j++) {
+                        timer.update(random.nextInt(1000000), TimeUnit.NANOSECONDS);
+                    }
+                    break;
+            }
+        }
+
+        reporter = StatsdReporter.forRegistry(registry)
+                .prefixedWith("bench")
+                .build(new Statsd(transport));
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.stop();
+    }
+
+    @Benchmark
+    public long report() {
+        reporter.report();
+        return transport.bytes;
+    }
+}
@@ -0,0 +1,553 @@
+package com.bealetech.metrics.reporting.java21;
+
+import com.bealetech.metrics.reporting.Statsd;
+import com.bealetech.metrics.reporting.StatsdEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A StatsD client for Java 21 applications which record values from virtual threads.
+ * <p>
+ * Nothing on the recording path blocks, locks or synchronizes, so any number of virtual threads
+ * can share one client without contending for a lock or pinning their carrier thread. Each call
+ * encodes its line on the calling thread, then claims room for it in one of several striped
+ * buffers with a compare-and-set and copies it in. The caller whose line no longer fits seals the
+ * buffer, puts a fresh one in its place and hands the full one to a sending thread, which writes
+ * it as one datagram to a non-blocking {@link DatagramChannel}. Datagrams the socket cannot take
+ * straight away are dropped and counted rather than waited for. Partially filled buffers are sent
+ * every flush interval.
+ * <p>
+ * Application threads never touch the channel, so interrupting one of them cannot close it.
+ *
+ * @see com.bealetech.metrics.reporting.StatsdClient for a client which runs on Java 6
+ */
+public final class LockFreeStatsdClient implements Closeable {
+
+    /**
+     * Returns a new {@link Builder} for {@link LockFreeStatsdClient}.
+     *
+     * @param host the hostname of the StatsD server
+     * @param port the port of the StatsD server
+     * @return a {@link Builder} instance for a {@link LockFreeStatsdClient}
+     */
+    public static Builder forServer(String host, int port) {
+        return new Builder(host, port);
+    }
+
+    /**
+     * A builder for {@link LockFreeStatsdClient} instances. Defaults to not using a prefix,
+     * sending datagrams of at most {@link Statsd#DEFAULT_MAX_PAYLOAD_SIZE} bytes, flushing every
+     * second and using two buffers per available processor.
+     */
+    public static final class Builder {
+        private final String host;
+        private final int port;
+        private String prefix;
+        private int maxPayloadSize;
+        private long flushInterval;
+        private TimeUnit flushIntervalUnit;
+        private int stripes;
+
+        private Builder(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.prefix = null;
+            this.maxPayloadSize = Statsd.DEFAULT_MAX_PAYLOAD_SIZE;
+            this.flushInterval = 1;
+            this.flushIntervalUnit = TimeUnit.SECONDS;
+            this.stripes = Runtime.getRuntime().availableProcessors() * 2;
+        }
+
+        /**
+         * Prefix all metric names with the given string.
+         *
+         * @param prefix the prefix for all metric names
+         * @return {@code this}
+         */
+        public Builder prefixedWith(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * Send datagrams of at most the given size.
+         *
+         * @param maxPayloadSize the maximum datagram payload, in bytes
+         * @return {@code this}
+         */
+        public Builder maxPayloadSize(int maxPayloadSize) {
+            this.maxPayloadSize = maxPayloadSize;
+            return this;
+        }
+
+        /**
+         * Send partially filled datagrams after the given interval.
+         *
+         * @param flushInterval the longest time a recorded value may wait to be sent
+         * @param unit          the unit of {@code flushInterval}
+         * @return {@code this}
+         */
+        public Builder flushEvery(long flushInterval, TimeUnit unit) {
+            this.flushInterval = flushInterval;
+            this.flushIntervalUnit = unit;
+            return this;
+        }
+
+        /**
+         * Use the given number of buffers. Rounded up to a power of two.
+         *
+         * @param stripes the number of buffers threads are spread across
+         * @return {@code this}
+         */
+        public Builder stripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Builds a {@link LockFreeStatsdClient} with the given properties, opening its channel
+         * and starting its sending thread.
+         *
+         * @return a {@link LockFreeStatsdClient}
+         * @throws IOException if the channel cannot be opened
+         */
+        public LockFreeStatsdClient build() throws IOException {
+            return new LockFreeStatsdClient(new InetSocketAddress(host, port),
+                    prefix,
+                    maxPayloadSize,
+                    flushIntervalUnit.toNanos(flushInterval),
+                    stripes);
+        }
+    }
+
+    /**
+     * The most full datagrams waiting for the sending thread. Datagrams sealed while this many
+     * are waiting are dropped.
+     */
+    public static final int MAX_QUEUED_DATAGRAMS = 1024;
+
+    /**
+     * The most names whose encoding is cached.
+     */
+    static final int MAX_CACHED_NAMES = 10000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockFreeStatsdClient.class);
+
+    private static final byte[] COUNTER = {'|', 'c'};
+    private static final byte[] TIMER = {'|', 'm', 's'};
+    private static final byte[] GAUGE = {'|', 'g'};
+    private static final byte[] SET = {'|', 's'};
+    // a buffer's position once it has been sealed
+    private static final int SEALED = -1;
+
+    private final DatagramChannel channel;
+    private final byte[] prefix;
+    private final int capacity;
+    private final long flushNanos;
+    private final AtomicReferenceArray<Buffer> stripes;
+    private final int mask;
+    private final ConcurrentHashMap<String, byte[]> names = new ConcurrentHashMap<>();
+    private final Queue<ByteBuffer> datagrams = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Thread sender;
+    private volatile boolean closed;
+    // set once the sending thread has sent what was left at close
+    private volatile boolean stopped;
+
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder droppedPackets = new LongAdder();
+    private final LongAdder oversizeDrops = new LongAdder();
+
+    private LockFreeStatsdClient(InetSocketAddress address,
+                                 String prefix,
+                                 int maxPayloadSize,
+                                 long flushNanos,
+                                 int stripes) throws IOException {
+        if (maxPayloadSize <= 0 || maxPayloadSize > Statsd.MAX_UDP_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("maxPayloadSize must be between 1 and " +
+                    Statsd.MAX_UDP_PAYLOAD_SIZE + ": " + maxPayloadSize);
+        }
+        this.prefix = prefix == null || prefix.isEmpty() ?
+                new byte[0] : StatsdEncoding.encodeName(prefix + ".");
+        // room for the newline after the last line, which is not sent
+        this.capacity = maxPayloadSize + 1;
+        this.flushNanos = flushNanos;
+
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            this.stripes.set(i, new Buffer(capacity));
+        }
+        this.mask = size - 1;
+
+        this.channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.sender = Thread.ofPlatform()
+                .name("statsd-client-sender")
+                .daemon(true)
+                .start(this::run);
+    }
+
+    /**
+     * Increments a counter by one.
+     *
+     * @param name the counter's name
+     */
+    public void increment(String name) {
+        increment(name, 1);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param name  the counter's name
+     * @param delta the amount to add, which may be negative
+     */
+    public void increment(String name, long delta) {
+        record(name, delta, COUNTER);
+    }
+
+    /**
+     * Records a duration in milliseconds.
+     *
+     * @param name   the timer's name
+     * @param millis the duration, in milliseconds
+     */
+    public void timing(String name, long millis) {
+        record(name, millis, TIMER);
+    }
+
+    /**
+     * Records a duration, sent in milliseconds with microsecond precision.
+     *
+     * @param name     the timer's name
+     * @param duration the duration
+     * @param unit     the unit of {@code duration}
+     */
+    public void timing(String name, long duration, TimeUnit unit) {
+        record(name, unit.toMicros(duration) / 1000.0, TIMER);
+    }
+
+    /**
+     * Sets a gauge.
+     *
+     * @param name  the gauge's name
+     * @param value the gauge's value
+     */
+    public void gauge(String name, long value) {
+        record(name, value, GAUGE);
+    }
+
+    /**
+     * Sets a gauge.
+     *
+     * @param name  the gauge's name
+     * @param value the gauge's value
+     */
+    public void gauge(String name, double value) {
+        record(name, value, GAUGE);
+    }
+
+    /**
+     * Adds a value to a set, whose number of unique values the server counts.
+     *
+     * @param name  the set's name
+     * @param value the value
+     */
+    public void set(String name, long value) {
+        record(name, value, SET);
+    }
+
+    /**
+     * Hands every partially filled buffer to the sending thread.
+     */
+    public void flush() {
+        seal();
+        LockSupport.unpark(sender);
+    }
+
+    /**
+     * Sends any buffered values, stops the sending thread and closes the channel.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(sender);
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of datagrams sent.
+     *
+     * @return the number of datagrams sent
+     */
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    /**
+     * Returns the number of payload bytes sent.
+     *
+     * @return the number of bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Returns the number of datagrams which could not be sent because of an error.
+     *
+     * @return the number of failed datagrams
+     */
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because the socket's send buffer or the queue of
+     * datagrams waiting to be sent was full, or because the client was closed.
+     *
+     * @return the number of datagrams dropped
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.sum();
+    }
+
+    /**
+     * Returns the number of values dropped because their line could not fit in a datagram.
+     *
+     * @return the number of oversize lines dropped
+     */
+    public long getOversizeDrops() {
+        return oversizeDrops.sum();
+    }
+
+    private void record(String name, long value, byte[] type) {
+        final byte[] line = line(name, length(value), type);
+        writeLong(line, line.length - 1 - type.length, value);
+        append(line);
+    }
+
+    private void record(String name, double value, byte[] type) {
+        // written the same way as by the library's other clients
+        final int valueLength = StatsdEncoding.doubleLength(value);
+        final byte[] line = line(name, valueLength, type);
+        StatsdEncoding.encodeDouble(value, line, line.length - 1 - type.length - valueLength);
+        append(line);
+    }
+
+    /**
+     * Returns a newline terminated line holding the name and type, with room for the value.
+     */
+    private byte[] line(String name, int valueLength, byte[] type) {
+        final byte[] encoded = name(name);
+        final byte[] line = new byte[prefix.length + encoded.length + 1 + valueLength +
+                type.length + 1];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        System.arraycopy(encoded, 0, line, prefix.length, encoded.length);
+        line[prefix.length + encoded.length] = ':';
+        System.arraycopy(type, 0, line, line.length - 1 - type.length, type.length);
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    private byte[] name(String name) {
+        byte[] encoded = names.get(name);
+        if (encoded == null) {
+            encoded = StatsdEncoding.encodeName(name);
+            if (names.size() < MAX_CACHED_NAMES) {
+                names.putIfAbsent(name, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Copies a line into the calling thread's buffer, sealing the buffer first if the line does
+     * not fit.
+     */
+    private void append(byte[] line) {
+        final int length = line.length;
+        if (length > capacity) {
+            oversizeDrops.increment();
+            return;
+        }
+
+        final int stripe = (int) Thread.currentThread().threadId() & mask;
+        while (true) {
+            final Buffer buffer = stripes.get(stripe);
+            final int position = buffer.reserved.get();
+            if (position == SEALED) {
+                // another thread is about to put a fresh buffer in its place
+                Thread.yield();
+            } else if (position + length > capacity) {
+                if (buffer.reserved.compareAndSet(position, SEALED)) {
+                    send(stripe, buffer, position);
+                }
+            } else if (buffer.reserved.compareAndSet(position, position + length)) {
+                System.arraycopy(line, 0, buffer.bytes, position, length);
+                buffer.written.addAndGet(length);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Seals every buffer holding at least one line.
+     */
+    private void seal() {
+        for (int i = 0; i < stripes.length(); i++) {
+            final Buffer buffer = stripes.get(i);
+            int position = buffer.reserved.get();
+            while (position > 0 && !buffer.reserved.compareAndSet(position, SEALED)) {
+                position = buffer.reserved.get();
+            }
+            if (position > 0) {
+                send(i, buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Replaces a buffer the caller has just sealed and queues its lines to be sent.
+     */
+    private void send(int stripe, Buffer buffer, int length) {
+        // a sealed buffer is never reused, so a writer holding on to it cannot mistake it for
+        // the new one
+        stripes.set(stripe, new Buffer(capacity));
+        // writers which claimed room before the buffer was sealed may still be copying
+        while (buffer.written.get() != length) {
+            Thread.yield();
+        }
+
+        if (stopped) {
+            droppedPackets.increment();
+            return;
+        }
+        if (queued.incrementAndGet() > MAX_QUEUED_DATAGRAMS) {
+            queued.decrementAndGet();
+            droppedPackets.increment();
+            return;
+        }
+        // the last line's newline is not sent
+        datagrams.offer(ByteBuffer.wrap(buffer.bytes, 0, length - 1));
+        LockSupport.unpark(sender);
+    }
+
+    private void run() {
+        try {
+            long nextFlush = System.nanoTime() + flushNanos;
+            while (!closed) {
+                drain();
+                final long wait = nextFlush - System.nanoTime();
+                if (wait <= 0) {
+                    seal();
+                    nextFlush = System.nanoTime() + flushNanos;
+                } else if (datagrams.isEmpty()) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+            seal();
+            drain();
+            stopped = true;
+            // datagrams sealed while the last ones were being sent
+            drain();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close channel to StatsD server", e);
+            }
+        }
+    }
+
+    private void drain() {
+        ByteBuffer datagram;
+        while ((datagram = datagrams.poll()) != null) {
+            queued.decrementAndGet();
+            final int length = datagram.remaining();
+            try {
+                if (channel.write(datagram) == length) {
+                    packetsSent.increment();
+                    bytesSent.add(length);
+                } else {
+                    droppedPackets.increment();
+                }
+            } catch (IOException e) {
+                sendFailures.increment();
+                LOGGER.debug("Unable to send to StatsD server {}", channel, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of characters in the decimal form of a value.
+     */
+    static int length(long value) {
+        // negative, so that Long.MIN_VALUE can be handled like any other value
+        long remaining = value < 0 ? value : -value;
+        int length = value < 0 ? 2 : 1;
+        while (remaining <= -10) {
+            remaining /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the decimal form of a value so that it ends just before the given index.
+     */
+    static void writeLong(byte[] bytes, int end, long value) {
+        long remaining = value < 0 ? value : -value;
+        int i = end;
+        do {
+            bytes[--i] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            bytes[--i] = '-';
+        }
+    }
+
+    private static final class Buffer {
+        final byte[] bytes;
+        // the end of the room claimed by writers, or SEALED
+        final AtomicInteger reserved = new AtomicInteger();
+        // the number of bytes writers have finished copying in
+        final AtomicInteger written = new AtomicInteger();
+
+        Buffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.bealetech.metrics.reporting.java21;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LockFreeStatsdClientTest {
+    private DatagramSocket server;
+    private LockFreeStatsdClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setReceiveBufferSize(4 * 1024 * 1024);
+        server.setSoTimeout(200);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void encodesEachTypeOfValue() throws Exception {
+        client = builder().prefixedWith("app").build();
+        client.increment("requests");
+        client.increment("requests", -3);
+        client.timing("latency", 12);
+        client.timing("latency", 1500, TimeUnit.MICROSECONDS);
+        client.gauge("queue size", Long.MIN_VALUE);
+        client.gauge("load", 2.346);
+        client.gauge("load", -0.004);
+        client.gauge("load", -1.5);
+        client.gauge("load", 1e20);
+        client.set("users", 42);
+        client.flush();
+
+        assertEquals(List.of("app.requests:1|c",
+                "app.requests:-3|c",
+                "app.latency:12|ms",
+                "app.latency:1.50|ms",
+                "app.queue-size:-9223372036854775808|g",
+                "app.load:2.35|g",
+                "app.load:0.00|g",
+                "app.load:-1.50|g",
+                "app.load:100000000000000000000.00|g",
+                "app.users:42|s"), receiveLines(10));
+    }
+
+    @Test
+    public void sendsEveryLineRecordedFromVirtualThreads() throws Exception {
+        client = builder().stripes(4).build();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 10000; i++) {
+                executor.execute(() -> client.increment("requests"));
+            }
+        }
+        client.flush();
+
+        final List<String> lines = receiveLines(10000);
+        assertEquals(10000, lines.size());
+        for (String line : lines) {
+            assertEquals("requests:1|c", line);
+        }
+        assertEquals(0, client.getDroppedPackets());
+        assertEquals(0, client.getSendFailures());
+    }
+
+    @Test
+    public void neverSplitsALineAcrossDatagrams() throws Exception {
+        client = builder().maxPayloadSize(40).build();
+        for (int i = 0; i < 100; i++) {
+            client.gauge("gauge" + i, i);
+        }
+        client.flush();
+
+        int received = 0;
+        for (String payload : receivePayloads(100)) {
+            assertTrue(payload.length() <= 40);
+            for (String line : payload.split("\n")) {
+                assertTrue(line, line.matches("gauge(\\d+):\\1\\|g"));
+                received++;
+            }
+        }
+        assertEquals(100, received);
+        assertTrue(client.getPacketsSent() > 1);
+    }
+
+    @Test
+    public void dropsLinesWhichCannotFitInADatagram() throws Exception {
+        client = builder().maxPayloadSize(20).build();
+        client.increment("a.name.far.too.long.for.the.datagram");
+        client.increment("short");
+        client.flush();
+
+        assertEquals(List.of("short:1|c"), receiveLines(1));
+        assertEquals(1, client.getOversizeDrops());
+    }
+
+    @Test
+    public void sendsPartiallyFilledBuffersEveryFlushInterval() throws Exception {
+        client = builder().flushEvery(10, TimeUnit.MILLISECONDS).build();
+        client.increment("requests");
+
+        assertEquals(List.of("requests:1|c"), receiveLines(1));
+    }
+
+    @Test
+    public void sendsWhatIsLeftWhenClosed() throws Exception {
+        client = builder().build();
+        client.increment("requests");
+        client.close();
+
+        assertEquals(List.of("requests:1|c"), receiveLines(1));
+        client.increment("requests");
+        client.flush();
+        assertEquals(1, client.getPacketsSent());
+    }
+
+    private LockFreeStatsdClient.Builder builder() {
+        return LockFreeStatsdClient.forServer("127.0.0.1", server.getLocalPort())
+                .flushEvery(1, TimeUnit.HOURS);
+    }
+
+    private List<String> receiveLines(int expected) throws Exception {
+        final List<String> lines = new ArrayList<>();
+        for (String payload : receivePayloads(expected)) {
+            lines.addAll(List.of(payload.split("\n")));
+        }
+        return lines;
+    }
+
+    // receives datagrams until the expected number of lines or a quiet period
+    private List<String> receivePayloads(int expectedLines) throws Exception {
+        final List<String> payloads = new ArrayList<>();
+        final byte[] buffer = new byte[65536];
+        int lines = 0;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (lines < expectedLines && System.nanoTime() < deadline) {
+            final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                server.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            final String payload = new String(packet.getData(), 0, packet.getLength(),
+                    StandardCharsets.UTF_8);
+            payloads.add(payload);
+            lines += payload.split("\n").length;
+        }
+        return payloads;
+    }
+}
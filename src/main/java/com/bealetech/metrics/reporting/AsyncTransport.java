@@ -0,0 +1,306 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link StatsdTransport} which hands payloads to a dedicated sender thread, so that the
+ * reporting thread never waits on the network.
+ * <p>
+ * Payloads are copied into pooled buffers and placed on a bounded, lock-free queue. When the
+ * queue is full the configured {@link OverflowPolicy} decides which payload is lost. The sender
+ * thread delivers queued payloads through the wrapped transport in order.
+ * <p>
+ * The transport is also a {@link MetricSet}: registering it exposes the queue depth and the
+ * number of payloads sent and dropped.
+ */
+public class AsyncTransport implements StatsdTransport, MetricSet {
+
+    /**
+     * What to do with a payload when the queue is full.
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Discard the oldest queued payload to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the payload being queued.
+         */
+        DROP_NEWEST,
+        /**
+         * Wait up to the configured timeout for room, then discard the payload being queued.
+         */
+        BLOCK
+    }
+
+    /**
+     * The default number of payloads which may be queued.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncTransport.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final StatsdTransport delegate;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    public AsyncTransport(StatsdTransport delegate) {
+        this(delegate, DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public AsyncTransport(StatsdTransport delegate,
+                          int capacity,
+                          OverflowPolicy overflowPolicy,
+                          long blockTimeout,
+                          TimeUnit unit) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+
+        this.sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "statsd-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public void connect() {
+        if (!running) {
+            throw new IllegalStateException("Transport is closed");
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer payload) {
+        ByteBuffer copy = pool.poll();
+        if (copy != null) {
+            pooled.decrementAndGet();
+        }
+        if (copy == null || copy.capacity() < payload.remaining()) {
+            copy = ByteBuffer.allocateDirect(Math.max(payload.remaining(),
+                    Statsd.DEFAULT_MAX_PAYLOAD_SIZE));
+        }
+        copy.clear();
+        copy.put(payload);
+        copy.flip();
+
+        if (reserve()) {
+            queue.offer(copy);
+            LockSupport.unpark(sender);
+        } else {
+            dropped.incrementAndGet();
+            recycle(copy);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        // the sender thread decides when the wrapped transport is connected
+    }
+
+    /**
+     * Stops the sender thread after it has delivered any queued payloads, then closes the
+     * wrapped transport.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(sender);
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of payloads waiting to be sent.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Returns the number of payloads sent by the wrapped transport.
+     *
+     * @return the number of payloads sent
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Returns the number of payloads discarded because the queue was full.
+     *
+     * @return the number of payloads dropped
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of payloads the wrapped transport failed to send.
+     *
+     * @return the number of failed payloads
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+        metrics.put("queue-depth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getQueueDepth();
+            }
+        });
+        metrics.put("sent", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSent();
+            }
+        });
+        metrics.put("dropped", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getDropped();
+            }
+        });
+        metrics.put("failed", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getFailed();
+            }
+        });
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Claims a slot in the queue according to the overflow policy.
+     */
+    private boolean reserve() {
+        if (depth.incrementAndGet() <= capacity) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                final ByteBuffer oldest = queue.poll();
+                if (oldest != null) {
+                    depth.decrementAndGet();
+                    dropped.incrementAndGet();
+                    recycle(oldest);
+                }
+                return true;
+            case BLOCK:
+                depth.decrementAndGet();
+                final long deadline = System.nanoTime() + blockTimeoutNanos;
+                while (running && System.nanoTime() - deadline < 0) {
+                    LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+                    if (depth.incrementAndGet() <= capacity) {
+                        return true;
+                    }
+                    depth.decrementAndGet();
+                }
+                return false;
+            default:
+                depth.decrementAndGet();
+                return false;
+        }
+    }
+
+    private void drain() {
+        boolean connected = false;
+        while (running || !queue.isEmpty()) {
+            final ByteBuffer payload = queue.poll();
+            if (payload == null) {
+                if (connected) {
+                    delegate.disconnect();
+                    connected = false;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            depth.decrementAndGet();
+
+            try {
+                if (!connected) {
+                    delegate.connect();
+                    connected = true;
+                }
+                delegate.send(payload);
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                LOGGER.warn("Unable to send to StatsD server {}", delegate, e);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                LOGGER.error("Unexpected error sending to StatsD server {}", delegate, e);
+            } finally {
+                recycle(payload);
+            }
+        }
+
+        if (connected) {
+            delegate.disconnect();
+        }
+        delegate.close();
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= capacity) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "async:" + delegate;
+    }
+}
@@ -0,0 +1,71 @@
+package com.bealetech.metrics.reporting;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link StatsdTransport} which keeps copies of the payloads it is given, so that a report can
+ * be encoded on one thread and sent on another. Buffers are reused once {@link #clear() cleared}.
+ * Not thread-safe.
+ */
+final class BufferingTransport implements StatsdTransport {
+    private final int maxPayloadSize;
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private int size;
+
+    BufferingTransport(int maxPayloadSize) {
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void send(ByteBuffer payload) {
+        if (size == buffers.size()) {
+            buffers.add(ByteBuffer.allocate(maxPayloadSize));
+        }
+        final ByteBuffer buffer = buffers.get(size++);
+        buffer.clear();
+        buffer.put(payload);
+        buffer.flip();
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void close() {
+        buffers.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of payloads held.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the payload at the given index, ready to be read.
+     */
+    ByteBuffer payload(int index) {
+        return buffers.get(index);
+    }
+
+    /**
+     * Forgets the payloads held, keeping their buffers for reuse.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "buffer:";
+    }
+}
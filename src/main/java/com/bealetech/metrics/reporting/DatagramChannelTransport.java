@@ -0,0 +1,189 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StatsdTransport} which keeps one connected, non-blocking {@link DatagramChannel} open
+ * for its whole lifetime.
+ * <p>
+ * The server's address is resolved once and only looked up again after the configured TTL has
+ * passed or a send has failed. If a later lookup fails the last good address is kept, so a DNS
+ * outage does not stop reporting. Datagrams the kernel cannot accept because its send buffer is
+ * full are dropped and counted rather than blocking the caller.
+ * <p>
+ * The transport is also a {@link MetricSet}: registering it exposes the number of failed lookups,
+ * failed sends and dropped datagrams.
+ */
+public class DatagramChannelTransport implements StatsdTransport, MetricSet {
+
+    /**
+     * The default time a resolved address is reused before it is looked up again.
+     */
+    public static final long DEFAULT_ADDRESS_TTL_SECONDS = 60;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatagramChannelTransport.class);
+
+    private final String host;
+    private final int port;
+    private final long addressTtlNanos;
+
+    private final AtomicLong dnsFailures = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private DatagramChannel channel;
+    private InetSocketAddress address;
+    private long resolvedAt;
+    private boolean stale;
+
+    public DatagramChannelTransport(String host, int port) {
+        this(host, port, DEFAULT_ADDRESS_TTL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public DatagramChannelTransport(String host, int port, long addressTtl, TimeUnit unit) {
+        this.host = host;
+        this.port = port;
+        this.addressTtlNanos = unit.toNanos(addressTtl);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            address = null;
+        }
+
+        if (address == null || stale || System.nanoTime() - resolvedAt >= addressTtlNanos) {
+            resolve();
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer payload) throws IOException {
+        try {
+            if (channel.write(payload) == 0) {
+                dropped.incrementAndGet();
+            }
+        } catch (IOException e) {
+            sendFailures.incrementAndGet();
+            stale = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        // the channel is kept open between reports
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error closing channel to {}", this, e);
+            }
+        }
+        channel = null;
+        address = null;
+    }
+
+    /**
+     * Returns the number of times looking up the server's address has failed.
+     *
+     * @return the number of failed address lookups
+     */
+    public long getDnsFailures() {
+        return dnsFailures.get();
+    }
+
+    /**
+     * Returns the number of datagrams which failed with an error.
+     *
+     * @return the number of failed sends
+     */
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    /**
+     * Returns the number of datagrams dropped because the socket's send buffer was full.
+     *
+     * @return the number of dropped datagrams
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+        metrics.put("dns-failures", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getDnsFailures();
+            }
+        });
+        metrics.put("send-failures", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSendFailures();
+            }
+        });
+        metrics.put("dropped", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getDropped();
+            }
+        });
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    private void resolve() throws IOException {
+        final InetSocketAddress resolved;
+        try {
+            resolved = new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            dnsFailures.incrementAndGet();
+            if (address == null) {
+                throw e;
+            }
+            LOGGER.warn("Unable to resolve {}, continuing to send to {}", host, address);
+            resolvedAt = System.nanoTime();
+            return;
+        }
+
+        if (!resolved.equals(address)) {
+            if (channel.isConnected()) {
+                channel.disconnect();
+            }
+            channel.connect(resolved);
+            address = resolved;
+        }
+        resolvedAt = System.nanoTime();
+        stale = false;
+    }
+
+    @Override
+    public String toString() {
+        return "udp://" + host + ":" + port;
+    }
+}
@@ -0,0 +1,61 @@
+package com.bealetech.metrics.reporting;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link StatsdTransport} which opens a new {@link DatagramSocket} and resolves the server's
+ * address for every report.
+ */
+public class DatagramSocketTransport implements StatsdTransport {
+    private final String host;
+    private final int port;
+
+    private final byte[] buffer = new byte[Statsd.MAX_UDP_PAYLOAD_SIZE];
+
+    private DatagramSocket datagramSocket;
+    private InetAddress address;
+
+    public DatagramSocketTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        datagramSocket = new DatagramSocket();
+        address = null;
+    }
+
+    @Override
+    public void send(ByteBuffer payload) throws IOException {
+        if (address == null) {
+            address = InetAddress.getByName(host);
+        }
+
+        final int length = payload.remaining();
+        payload.get(buffer, 0, length);
+        datagramSocket.send(new DatagramPacket(buffer, 0, length, address, port));
+    }
+
+    @Override
+    public void disconnect() {
+        if (datagramSocket != null) {
+            datagramSocket.close();
+        }
+        datagramSocket = null;
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+
+    @Override
+    public String toString() {
+        return "udp://" + host + ":" + port;
+    }
+}
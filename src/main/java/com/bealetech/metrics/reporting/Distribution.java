@@ -0,0 +1,81 @@
+package com.bealetech.metrics.reporting;
+
+/**
+ * Groups sampled values into logarithmic buckets, so that a whole distribution can be sent as a
+ * handful of representative values, each with the number of samples it stands for.
+ * <p>
+ * Bucket {@code i} holds the magnitudes in {@code (g^(i-1), g^i]}, where
+ * {@code g = (1 + a) / (1 - a)} for a relative accuracy {@code a}, and is represented by
+ * {@code 2 g^i / (g + 1)}, which lies within {@code a} of every value in the bucket. Negative
+ * values are bucketed by magnitude and zero has a bucket of its own. Bucket boundaries depend only
+ * on the accuracy, so distributions from different hosts merge without further loss.
+ */
+final class Distribution {
+    private final double logGamma;
+    private final double midpoint;
+
+    /**
+     * @param relativeAccuracy the largest relative error of a bucket's representative value,
+     *                         greater than 0 and less than 1
+     * @throws IllegalArgumentException if {@code relativeAccuracy} is out of range
+     */
+    Distribution(double relativeAccuracy) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException(
+                    "relative accuracy must be between 0 and 1: " + relativeAccuracy);
+        }
+        final double gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.midpoint = 2 / (gamma + 1);
+    }
+
+    /**
+     * Returns the fewest significant digits which keep the relative error of rounding a value
+     * within the given bound.
+     *
+     * @param relativeError the largest relative error rounding may add, greater than 0
+     * @return the number of significant digits to write values with
+     */
+    static int significantDigits(double relativeError) {
+        // rounding to d digits is off by at most half a unit in the last place, 0.5 * 10^(1-d)
+        final int digits = (int) Math.ceil(1 + Math.log10(0.5 / relativeError));
+        return Math.max(1, Math.min(StatsdLineEncoder.MAX_SIGNIFICANT_DIGITS, digits));
+    }
+
+    /**
+     * Buckets the given values, which must be sorted in ascending order.
+     *
+     * @param sorted the values
+     * @param values receives each bucket's representative value, in ascending order; at least as
+     *               long as {@code sorted}
+     * @param counts receives the number of values in each bucket
+     * @return the number of buckets
+     */
+    int bucket(long[] sorted, double[] values, int[] counts) {
+        int buckets = 0;
+        long previousSign = 0;
+        int previousIndex = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            final long sign = Long.signum(sorted[i]);
+            final int index = sign == 0 ? 0 : index(Math.abs((double) sorted[i]));
+            if (buckets > 0 && sign == previousSign && index == previousIndex) {
+                counts[buckets - 1]++;
+            } else {
+                values[buckets] = sign * value(index);
+                counts[buckets] = 1;
+                buckets++;
+                previousSign = sign;
+                previousIndex = index;
+            }
+        }
+        return buckets;
+    }
+
+    private int index(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    private double value(int index) {
+        return Math.exp(index * logGamma) * midpoint;
+    }
+}
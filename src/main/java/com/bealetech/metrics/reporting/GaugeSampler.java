@@ -0,0 +1,131 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads gauges within a time budget, so that a few slow gauges do not hold up a whole report.
+ * <p>
+ * A gauge is read on the reporting thread until reading it takes longer than the budget. From
+ * then on it is read on an executor, and each report gets the last value read while the next
+ * read is under way. Once a read finishes within the budget again, the gauge goes back to being
+ * read on the reporting thread.
+ */
+final class GaugeSampler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GaugeSampler.class);
+
+    private final long budgetNanos;
+    private final Executor executor;
+    private final ReporterMetrics metrics;
+    private final ConcurrentMap<String, SlowGauge> slowGauges =
+            new ConcurrentHashMap<String, SlowGauge>();
+
+    /**
+     * @param budget   the longest time a gauge may take to read on the reporting thread
+     * @param unit     the unit of {@code budget}
+     * @param executor the executor slow gauges are read on
+     * @param metrics  the reporter's own metrics, or {@code null}
+     */
+    GaugeSampler(long budget, TimeUnit unit, Executor executor, ReporterMetrics metrics) {
+        this.budgetNanos = unit.toNanos(budget);
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the gauge's value, or its last value if the gauge is slow.
+     *
+     * @param name  the gauge's name
+     * @param gauge the gauge
+     * @return the gauge's value, or {@code null} if it has none
+     */
+    Object read(String name, Gauge gauge) {
+        final SlowGauge slow = slowGauges.get(name);
+        if (slow != null && slow.gauge == gauge) {
+            slow.refresh();
+            return slow.value;
+        }
+
+        final long start = System.nanoTime();
+        final Object value = gauge.getValue();
+        final long elapsed = System.nanoTime() - start;
+        if (elapsed > budgetNanos) {
+            slowGauges.put(name, new SlowGauge(name, gauge, value));
+            overBudget(name, elapsed);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of gauges currently read on the executor.
+     */
+    int slowGauges() {
+        return slowGauges.size();
+    }
+
+    /**
+     * Forgets a gauge removed from the registry.
+     */
+    void remove(String name) {
+        if (slowGauges.remove(name) != null && metrics != null) {
+            metrics.removeSlowGauge(name);
+        }
+    }
+
+    private void overBudget(String name, long nanos) {
+        LOGGER.debug("Gauge {} took {} ms to read", name, TimeUnit.NANOSECONDS.toMillis(nanos));
+        if (metrics != null) {
+            metrics.gaugeOverBudget(name, nanos);
+        }
+    }
+
+    private final class SlowGauge implements Runnable {
+        private final String name;
+        private final Gauge gauge;
+        private final AtomicBoolean reading = new AtomicBoolean();
+        private volatile Object value;
+
+        SlowGauge(String name, Gauge gauge, Object value) {
+            this.name = name;
+            this.gauge = gauge;
+            this.value = value;
+        }
+
+        void refresh() {
+            if (reading.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    reading.set(false);
+                    LOGGER.debug("Unable to read gauge {}", name, e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                final long start = System.nanoTime();
+                value = gauge.getValue();
+                final long elapsed = System.nanoTime() - start;
+                if (elapsed > budgetNanos) {
+                    overBudget(name, elapsed);
+                } else {
+                    slowGauges.remove(name, this);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to read gauge {}", name, e);
+            } finally {
+                reading.set(false);
+            }
+        }
+    }
+}
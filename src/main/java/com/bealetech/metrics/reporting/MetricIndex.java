@@ -0,0 +1,195 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The metrics of a registry which pass a filter, kept in one flat array per metric type so that
+ * each report can walk them without building sorted maps of the whole registry.
+ * <p>
+ * Registered as a {@link MetricRegistryListener}, the index is told about every metric already in
+ * the registry and every one added or removed later. The filter is applied once, when a metric is
+ * added. Changes may arrive on any thread; they are queued and only applied by {@link #update()},
+ * which the reporting thread calls before walking the arrays. Metrics are kept in the order they
+ * were added, and a removed metric's slot is filled by the last one.
+ */
+class MetricIndex implements MetricRegistryListener {
+
+    /**
+     * The metrics of one type, in insertion order with removed slots filled from the end.
+     */
+    static final class Entries<T extends Metric> {
+        private static final int MIN_CAPACITY = 16;
+
+        private final ObjectLongMap<String> positions = new ObjectLongMap<String>();
+        private String[] names = new String[MIN_CAPACITY];
+        private Metric[] metrics = new Metric[MIN_CAPACITY];
+        private int size;
+
+        /**
+         * Returns the entries of the given map, in the map's order.
+         */
+        static <T extends Metric> Entries<T> of(Map<String, T> map) {
+            final Entries<T> entries = new Entries<T>();
+            for (Map.Entry<String, T> entry : map.entrySet()) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+            return entries;
+        }
+
+        int size() {
+            return size;
+        }
+
+        String name(int i) {
+            return names[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        T metric(int i) {
+            return (T) metrics[i];
+        }
+
+        void put(String name, T metric) {
+            final long position = positions.get(name, -1);
+            if (position >= 0) {
+                metrics[(int) position] = metric;
+                return;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                metrics = Arrays.copyOf(metrics, size * 2);
+            }
+            names[size] = name;
+            metrics[size] = metric;
+            positions.put(name, size);
+            size++;
+        }
+
+        void remove(String name) {
+            final int position = (int) positions.get(name, -1);
+            if (position < 0) {
+                return;
+            }
+            positions.remove(name);
+            size--;
+            if (position != size) {
+                names[position] = names[size];
+                metrics[position] = metrics[size];
+                positions.put(names[position], position);
+            }
+            names[size] = null;
+            metrics[size] = null;
+        }
+    }
+
+    final Entries<Gauge> gauges = new Entries<Gauge>();
+    final Entries<Counter> counters = new Entries<Counter>();
+    final Entries<Histogram> histograms = new Entries<Histogram>();
+    final Entries<Meter> meters = new Entries<Meter>();
+    final Entries<Timer> timers = new Entries<Timer>();
+
+    private final MetricFilter filter;
+    private final Queue<Change> changes = new ConcurrentLinkedQueue<Change>();
+
+    MetricIndex(MetricFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Applies the additions and removals made since the last call. Call this only from the thread
+     * which reads the entries.
+     */
+    @SuppressWarnings("unchecked")
+    void update() {
+        Change change;
+        while ((change = changes.poll()) != null) {
+            final Entries<Metric> entries = (Entries<Metric>) change.entries;
+            if (change.metric == null) {
+                entries.remove(change.name);
+            } else {
+                entries.put(change.name, change.metric);
+            }
+        }
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        added(gauges, name, gauge);
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        changes.offer(new Change(gauges, name, null));
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        added(counters, name, counter);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        changes.offer(new Change(counters, name, null));
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        added(histograms, name, histogram);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        changes.offer(new Change(histograms, name, null));
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        added(meters, name, meter);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        changes.offer(new Change(meters, name, null));
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        added(timers, name, timer);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        changes.offer(new Change(timers, name, null));
+    }
+
+    private void added(Entries<?> entries, String name, Metric metric) {
+        if (filter.matches(name, metric)) {
+            changes.offer(new Change(entries, name, metric));
+        }
+    }
+
+    private static final class Change {
+        final Entries<?> entries;
+        final String name;
+        // null when the metric was removed
+        final Metric metric;
+
+        Change(Entries<?> entries, String name, Metric metric) {
+            this.entries = entries;
+            this.name = name;
+            this.metric = metric;
+        }
+    }
+}
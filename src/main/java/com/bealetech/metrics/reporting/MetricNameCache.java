@@ -0,0 +1,184 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of prefixed, sanitized and UTF-8 encoded metric names, keyed by registry name
+ * and suffix.
+ * <p>
+ * Registered as a {@link MetricRegistryListener}, the cache forgets a metric's names as soon as
+ * the metric is removed from the registry. Once more than {@code maxSize} metrics are cached, the
+ * least recently used of a few sampled metrics has its names evicted, so the bound and the order
+ * of eviction are approximate.
+ * <p>
+ * Lookups take no lock, so the tasks of a {@link StatsdReporter.Builder#reportInParallel parallel
+ * report} can all encode names at once.
+ */
+class MetricNameCache extends MetricRegistryListener.Base {
+
+    /**
+     * The default number of metrics whose names are cached.
+     */
+    static final int DEFAULT_MAX_SIZE = 65536;
+
+    /**
+     * The number of metrics compared to pick one to evict.
+     */
+    static final int EVICTION_SAMPLE = 8;
+
+    private final String prefix;
+    private final int maxSize;
+    private final ConcurrentMap<String, Names> names = new ConcurrentHashMap<String, Names>();
+    // advanced whenever a metric is added, so that metrics used since then are the more recent
+    private final AtomicLong clock = new AtomicLong();
+
+    MetricNameCache(String prefix) {
+        this(prefix, DEFAULT_MAX_SIZE);
+    }
+
+    MetricNameCache(String prefix, int maxSize) {
+        this.prefix = prefix;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the encoded name of the given metric.
+     *
+     * @param name the metric's name in the registry
+     * @return the prefixed, sanitized and encoded name
+     */
+    byte[] get(String name) {
+        final Names metric = names(name);
+        byte[] encoded = metric.name;
+        if (encoded == null) {
+            encoded = StatsdLineEncoder.encodeName(MetricRegistry.name(prefix, name));
+            metric.name = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the encoded name of one of the given metric's values.
+     *
+     * @param name   the metric's name in the registry
+     * @param suffix the value's suffix, such as {@code p99}, or {@code null}
+     * @return the prefixed, sanitized and encoded name
+     */
+    byte[] get(String name, String suffix) {
+        if (suffix == null) {
+            return get(name);
+        }
+        final Names metric = names(name);
+        byte[] encoded = metric.suffixes.get(suffix);
+        if (encoded == null) {
+            encoded = StatsdLineEncoder.encodeName(MetricRegistry.name(prefix, name, suffix));
+            final byte[] existing = metric.suffixes.putIfAbsent(suffix, encoded);
+            if (existing != null) {
+                encoded = existing;
+            }
+        }
+        return encoded;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    void remove(String name) {
+        names.remove(name);
+    }
+
+    private Names names(String name) {
+        Names metric = names.get(name);
+        if (metric != null) {
+            final long now = clock.get();
+            if (metric.used != now) {
+                metric.used = now;
+            }
+            return metric;
+        }
+
+        metric = new Names(clock.getAndIncrement());
+        final Names existing = names.putIfAbsent(name, metric);
+        if (existing != null) {
+            return existing;
+        }
+        if (names.size() > maxSize) {
+            evict(name);
+        }
+        return metric;
+    }
+
+    /**
+     * Evicts metrics other than the one just added until the cache is within its bound, each the
+     * least recently used of the first few metrics. Threads evicting at once may pick the same
+     * metric, so each keeps going until the cache is small enough.
+     */
+    private void evict(String added) {
+        while (names.size() > maxSize) {
+            Map.Entry<String, Names> oldest = null;
+            int sampled = 0;
+            final Iterator<Map.Entry<String, Names>> entries = names.entrySet().iterator();
+            while (sampled < EVICTION_SAMPLE && entries.hasNext()) {
+                final Map.Entry<String, Names> entry = entries.next();
+                if (!entry.getKey().equals(added)) {
+                    if (oldest == null || entry.getValue().used < oldest.getValue().used) {
+                        oldest = entry;
+                    }
+                    sampled++;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            names.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        remove(name);
+    }
+
+    /**
+     * The encoded names of one metric's values.
+     */
+    private static final class Names {
+        final ConcurrentMap<String, byte[]> suffixes =
+                new ConcurrentHashMap<String, byte[]>(4, 0.75f, 1);
+        // the name without a suffix, racily set since encoding it twice is harmless
+        volatile byte[] name;
+        volatile long used;
+
+        Names(long used) {
+            this.used = used;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.bealetech.metrics.reporting;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from objects to primitive {@code long} values, so that values can be
+ * read and replaced on every report without boxing.
+ * <p>
+ * Keys are found by linear probing in a power-of-two table kept at most half full. Removal shifts
+ * later entries of the probe sequence back, so no tombstones accumulate. Not thread-safe.
+ */
+final class ObjectLongMap<K> {
+    private static final int MIN_CAPACITY = 16;
+
+    private Object[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    ObjectLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    ObjectLongMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the value for the given key, or {@code missing} if the key is not present.
+     */
+    long get(K key, long missing) {
+        int i = index(key);
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k.equals(key)) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    boolean containsKey(K key) {
+        int i = index(key);
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k.equals(key)) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    void put(K key, long value) {
+        int i = index(key);
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k.equals(key)) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Copies every entry of the given map into this one, replacing existing values.
+     */
+    @SuppressWarnings("unchecked")
+    void putAll(ObjectLongMap<K> other) {
+        final Object[] otherKeys = other.keys;
+        for (int i = 0; i < otherKeys.length; i++) {
+            if (otherKeys[i] != null) {
+                put((K) otherKeys[i], other.values[i]);
+            }
+        }
+    }
+
+    boolean remove(K key) {
+        int i = index(key);
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k.equals(key)) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, null);
+            size = 0;
+        }
+    }
+
+    /**
+     * Closes the gap left at {@code gap} by moving back any later entry of the same probe run
+     * whose home slot does not lie between the gap and its current slot.
+     */
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            final Object k = keys[i];
+            if (k == null) {
+                break;
+            }
+            final int home = index(k);
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = null;
+    }
+
+    private int index(Object key) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        final Object[] oldKeys = keys;
+        final long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            final Object k = oldKeys[i];
+            if (k != null) {
+                int j = index(k);
+                while (keys[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = k;
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.bealetech.metrics.reporting;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accumulates newline separated lines into a single datagram payload of bounded size.
+ */
+final class PacketBuffer {
+    private final ByteBuffer buffer;
+    private int lines;
+
+    PacketBuffer(int maxPayloadSize) {
+        this.buffer = ByteBuffer.allocateDirect(maxPayloadSize);
+    }
+
+    /**
+     * Appends the encoder's current line.
+     *
+     * @param encoder an encoder holding a complete line
+     * @return {@code false} if the line does not fit, in which case nothing is appended
+     */
+    boolean append(StatsdLineEncoder encoder) {
+        return append(encoder.buffer(), 0, encoder.length());
+    }
+
+    /**
+     * Appends a line already encoded elsewhere.
+     *
+     * @return {@code false} if the line does not fit, in which case nothing is appended
+     */
+    boolean append(byte[] line, int offset, int length) {
+        // lines are newline separated, so a non-empty packet needs one extra byte
+        final int needed = buffer.position() == 0 ? length : length + 1;
+        if (buffer.remaining() < needed) {
+            return false;
+        }
+
+        if (buffer.position() > 0) {
+            buffer.put((byte) '\n');
+        }
+        buffer.put(line, offset, length);
+        lines++;
+        return true;
+    }
+
+    int lines() {
+        return lines;
+    }
+
+    int size() {
+        return buffer.position();
+    }
+
+    boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * Returns the accumulated payload, ready to be sent. Call {@link #clear()} once it has been.
+     *
+     * @return the payload
+     */
+    ByteBuffer payload() {
+        buffer.flip();
+        return buffer;
+    }
+
+    void clear() {
+        buffer.clear();
+        lines = 0;
+    }
+}
@@ -0,0 +1,206 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics a {@link StatsdReporter} records about its own reports.
+ * <p>
+ * Each report's duration is split into the time spent taking snapshots and reading gauges, the
+ * time spent handing datagrams to the transport, and the remainder, which is spent encoding.
+ * When reporting in parallel, snapshot time is summed across tasks.
+ * <p>
+ * Only the metrics this instance registered are removed when the reporter stops, so reporters
+ * sharing a registry and prefix do not remove each other's. A metric whose name is already taken
+ * is still recorded, but not registered.
+ */
+final class ReporterMetrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReporterMetrics.class);
+
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Statsd statsd;
+    private final Statsd[] workers;
+
+    private final Timer report;
+    private final Timer snapshot;
+    private final Timer encode;
+    private final Timer send;
+    private final Histogram lines;
+    private final Histogram bytes;
+    private final Histogram datagrams;
+    private final Meter sendFailures;
+    private final Counter nullGauges;
+    private final Counter skippedReports;
+    private final Meter gaugesOverBudget;
+
+    // the metrics this instance registered, by name
+    private final ConcurrentMap<String, Metric> registered =
+            new ConcurrentHashMap<String, Metric>();
+    private final ConcurrentMap<String, Timer> slowGauges = new ConcurrentHashMap<String, Timer>();
+    private final AtomicLong snapshotNanos = new AtomicLong();
+
+    private long startNanos;
+    private long startLines;
+    private long startBytes;
+    private long startDatagrams;
+    private long startFailures;
+    private long startSendNanos;
+
+    ReporterMetrics(MetricRegistry registry, String prefix, Statsd statsd, Statsd[] workers) {
+        this.registry = registry;
+        this.prefix = prefix;
+        this.statsd = statsd;
+        this.workers = workers;
+
+        this.report = register(MetricRegistry.name(prefix, "report"), new Timer());
+        this.snapshot = register(MetricRegistry.name(prefix, "report", "snapshot"), new Timer());
+        this.encode = register(MetricRegistry.name(prefix, "report", "encode"), new Timer());
+        this.send = register(MetricRegistry.name(prefix, "report", "send"), new Timer());
+        this.lines = register(MetricRegistry.name(prefix, "lines"), histogram());
+        this.bytes = register(MetricRegistry.name(prefix, "bytes"), histogram());
+        this.datagrams = register(MetricRegistry.name(prefix, "datagrams"), histogram());
+        this.sendFailures = register(MetricRegistry.name(prefix, "send-failures"), new Meter());
+        this.nullGauges = register(MetricRegistry.name(prefix, "null-gauges"), new Counter());
+        this.skippedReports =
+                register(MetricRegistry.name(prefix, "skipped-reports"), new Counter());
+        this.gaugesOverBudget =
+                register(MetricRegistry.name(prefix, "gauges-over-budget"), new Meter());
+
+        final StatsdTransport transport = statsd.getTransport();
+        if (transport instanceof MetricSet) {
+            registerAll(MetricRegistry.name(prefix, "transport"), (MetricSet) transport);
+        }
+    }
+
+    void begin() {
+        startNanos = System.nanoTime();
+        startLines = linesSent();
+        startBytes = statsd.getBytesSent();
+        startDatagrams = statsd.getPacketsSent();
+        startFailures = statsd.getSendFailures();
+        startSendNanos = statsd.getSendNanos();
+        snapshotNanos.set(0);
+    }
+
+    void end() {
+        final long totalNanos = System.nanoTime() - startNanos;
+        final long snapshotTotal = snapshotNanos.get();
+        final long sendTotal = statsd.getSendNanos() - startSendNanos;
+
+        report.update(totalNanos, TimeUnit.NANOSECONDS);
+        snapshot.update(snapshotTotal, TimeUnit.NANOSECONDS);
+        send.update(sendTotal, TimeUnit.NANOSECONDS);
+        encode.update(Math.max(0, totalNanos - snapshotTotal - sendTotal), TimeUnit.NANOSECONDS);
+
+        lines.update(linesSent() - startLines);
+        bytes.update(statsd.getBytesSent() - startBytes);
+        datagrams.update(statsd.getPacketsSent() - startDatagrams);
+        final long failures = statsd.getSendFailures() - startFailures;
+        if (failures > 0) {
+            sendFailures.mark(failures);
+        }
+    }
+
+    void snapshotTaken(long nanos) {
+        snapshotNanos.addAndGet(nanos);
+    }
+
+    void nullGauge() {
+        nullGauges.inc();
+    }
+
+    void skipped(long reports) {
+        skippedReports.inc(reports);
+    }
+
+    /**
+     * Records a gauge read which took longer than the time budget, under {@code slow-gauges}
+     * and the gauge's name.
+     */
+    void gaugeOverBudget(String name, long nanos) {
+        gaugesOverBudget.mark();
+        Timer timer = slowGauges.get(name);
+        if (timer == null) {
+            final Timer created = new Timer();
+            timer = slowGauges.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = register(MetricRegistry.name(prefix, "slow-gauges", name), created);
+            }
+        }
+        timer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void removeSlowGauge(String name) {
+        if (slowGauges.remove(name) != null) {
+            unregister(MetricRegistry.name(prefix, "slow-gauges", name));
+        }
+    }
+
+    /**
+     * Removes every metric registered by this instance.
+     */
+    void remove() {
+        for (String name : registered.keySet()) {
+            unregister(name);
+        }
+        slowGauges.clear();
+    }
+
+    private <T extends Metric> T register(String name, T metric) {
+        try {
+            registry.register(name, metric);
+            registered.put(name, metric);
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("A metric named {} is already registered", name, e);
+        }
+        return metric;
+    }
+
+    private void registerAll(String prefix, MetricSet metrics) {
+        for (Map.Entry<String, Metric> entry : metrics.getMetrics().entrySet()) {
+            final String name = MetricRegistry.name(prefix, entry.getKey());
+            if (entry.getValue() instanceof MetricSet) {
+                registerAll(name, (MetricSet) entry.getValue());
+            } else {
+                register(name, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes a metric this instance registered, unless another has taken its place since.
+     */
+    private void unregister(String name) {
+        final Metric metric = registered.remove(name);
+        if (metric != null && registry.getMetrics().get(name) == metric) {
+            registry.remove(name);
+        }
+    }
+
+    private static Histogram histogram() {
+        return new Histogram(new ExponentiallyDecayingReservoir());
+    }
+
+    private long linesSent() {
+        long total = statsd.getLinesSent();
+        for (Statsd worker : workers) {
+            total += worker.getLinesSent();
+        }
+        return total;
+    }
+}
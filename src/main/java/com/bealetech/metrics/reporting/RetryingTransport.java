@@ -0,0 +1,254 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StatsdTransport} which keeps the payloads its delegate fails to send and sends them
+ * again, oldest first, once the delegate recovers. This rides out short server restarts and
+ * network outages without losing whole reports.
+ * <p>
+ * Unsent payloads are held outside the Java heap, in a direct buffer or a memory-mapped file, up
+ * to a fixed number of bytes. When the buffer is full the oldest payloads are dropped to make
+ * room, so an outage costs a bounded amount of memory. A memory-mapped file also keeps unsent
+ * payloads across restarts of the application.
+ * <p>
+ * Since a failed payload is now this transport's to deliver, {@link #send(ByteBuffer)} and
+ * {@link #connect()} do not throw when the delegate fails, and the reporter does not send the
+ * same counter increments again. New payloads are kept behind older unsent ones, so the server
+ * always receives them in order. Payloads lost inside the delegate, such as lines a
+ * {@link StreamTransport} had buffered when its connection broke, cannot be retried. Not
+ * thread-safe.
+ * <p>
+ * The transport is also a {@link MetricSet}, exposing the number of payloads kept, sent again
+ * and dropped, and the number of bytes currently kept.
+ */
+public class RetryingTransport implements StatsdTransport, MetricSet {
+
+    /**
+     * The default number of bytes kept for sending again.
+     */
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryingTransport.class);
+
+    private final StatsdTransport delegate;
+    private final SpillBuffer backlog;
+    private ByteBuffer scratch = ByteBuffer.allocateDirect(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+    private boolean connected;
+
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    public RetryingTransport(StatsdTransport delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Keeps unsent payloads in direct memory.
+     *
+     * @param delegate the transport which sends payloads
+     * @param capacity the most bytes kept, including four bytes per payload
+     */
+    public RetryingTransport(StatsdTransport delegate, int capacity) {
+        this(delegate, checkCapacity(capacity), null);
+    }
+
+    /**
+     * Keeps unsent payloads in a memory-mapped file, resuming any it already holds.
+     *
+     * @param delegate the transport which sends payloads
+     * @param file     the file to keep payloads in; it grows to {@code capacity} bytes and a small
+     *                 header
+     * @param capacity the most bytes kept, including four bytes per payload
+     * @throws IOException if the file cannot be mapped
+     */
+    public RetryingTransport(StatsdTransport delegate, File file, int capacity) throws IOException {
+        this(delegate, checkCapacity(capacity), new SpillBuffer(file, capacity));
+    }
+
+    private RetryingTransport(StatsdTransport delegate, int capacity, SpillBuffer backlog) {
+        this.delegate = delegate;
+        this.backlog = backlog == null ? new SpillBuffer(capacity) : backlog;
+        bufferedBytes.set(this.backlog.bytes());
+    }
+
+    private static int checkCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        return capacity;
+    }
+
+    /**
+     * Connects the delegate and sends any payloads kept from earlier failures. Failures are
+     * logged rather than thrown, and the report's payloads are kept instead.
+     */
+    @Override
+    public void connect() {
+        try {
+            delegate.connect();
+            connected = true;
+        } catch (IOException e) {
+            connected = false;
+            LOGGER.debug("Unable to connect to StatsD server {}", delegate, e);
+            return;
+        }
+        replay();
+    }
+
+    /**
+     * Sends the payload, or keeps it to send again if the delegate fails or older payloads are
+     * still waiting.
+     */
+    @Override
+    public void send(ByteBuffer payload) {
+        if (connected && replay()) {
+            try {
+                // the delegate may consume part of the payload before failing
+                delegate.send(payload.duplicate());
+                payload.position(payload.limit());
+                return;
+            } catch (IOException e) {
+                connected = false;
+                LOGGER.debug("Unable to send to StatsD server {}", delegate, e);
+            }
+        }
+        spill(payload);
+    }
+
+    @Override
+    public void disconnect() {
+        delegate.disconnect();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+        backlog.close();
+    }
+
+    /**
+     * Returns the number of payloads kept because they could not be sent.
+     *
+     * @return the number of payloads kept
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * Returns the number of kept payloads which were later sent.
+     *
+     * @return the number of payloads sent again
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * Returns the number of payloads dropped because the buffer was full or they were larger than
+     * it.
+     *
+     * @return the number of payloads lost
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of bytes currently kept.
+     *
+     * @return the bytes kept, including four bytes per payload
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+        metrics.put("spilled", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSpilled();
+            }
+        });
+        metrics.put("replayed", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getReplayed();
+            }
+        });
+        metrics.put("dropped", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getDropped();
+            }
+        });
+        metrics.put("buffered-bytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getBufferedBytes();
+            }
+        });
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    /**
+     * Sends kept payloads, oldest first, until none are left or the delegate fails.
+     *
+     * @return whether every kept payload was sent
+     */
+    private boolean replay() {
+        while (!backlog.isEmpty()) {
+            final int length = backlog.peekLength();
+            if (scratch.capacity() < length) {
+                scratch = ByteBuffer.allocateDirect(length);
+            }
+            scratch.clear();
+            backlog.peek(scratch);
+            scratch.flip();
+            try {
+                delegate.send(scratch);
+            } catch (IOException e) {
+                connected = false;
+                LOGGER.debug("Unable to send to StatsD server {}", delegate, e);
+                return false;
+            }
+            backlog.remove();
+            bufferedBytes.set(backlog.bytes());
+            replayed.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void spill(ByteBuffer payload) {
+        if (!backlog.fits(payload.remaining())) {
+            payload.position(payload.limit());
+            dropped.incrementAndGet();
+            return;
+        }
+        dropped.addAndGet(backlog.add(payload));
+        bufferedBytes.set(backlog.bytes());
+        spilled.incrementAndGet();
+    }
+}
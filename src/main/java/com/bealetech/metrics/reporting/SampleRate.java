@@ -0,0 +1,113 @@
+package com.bealetech.metrics.reporting;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * The fraction of values a {@link StatsdClient} sends for a counter or timer, along with the
+ * {@code |@rate} annotation the server needs to scale sampled counts back up.
+ * <p>
+ * Whether a value is sent is decided by a xorshift generator kept per thread, so the decision
+ * costs a few arithmetic operations and never contends on shared state.
+ */
+final class SampleRate {
+    /**
+     * Sends every value, without an annotation.
+     */
+    static final SampleRate ALWAYS = new SampleRate(1.0, new byte[0]);
+
+    private static final double UNIT = 1.0 / (1L << 53);
+
+    // the rates for small weights, created as they are first needed
+    private static final SampleRate[] WEIGHTS = new SampleRate[256];
+
+    private static final ThreadLocal<long[]> SEEDS = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            final long seed = (System.nanoTime() ^ Thread.currentThread().getId())
+                    * 0x9E3779B97F4A7C15L;
+            return new long[] { seed == 0 ? 1 : seed };
+        }
+    };
+
+    final double rate;
+    final byte[] suffix;
+
+    private SampleRate(double rate, byte[] suffix) {
+        this.rate = rate;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Returns the sample rate for the given fraction.
+     *
+     * @param rate the fraction of values to send, greater than 0 and at most 1
+     * @return the sample rate
+     * @throws IllegalArgumentException if {@code rate} is out of range
+     */
+    static SampleRate of(double rate) {
+        if (!(rate > 0 && rate <= 1)) {
+            throw new IllegalArgumentException("sample rate must be in (0, 1]: " + rate);
+        }
+        return rate == 1 ? ALWAYS : new SampleRate(rate, encode(rate));
+    }
+
+    /**
+     * Returns the rate at which each value sent stands for the given number of values.
+     *
+     * @param weight the number of values each value sent stands for
+     * @return the sample rate {@code 1 / weight}, to four significant digits
+     */
+    static SampleRate ofWeight(int weight) {
+        if (weight <= 1) {
+            return ALWAYS;
+        }
+        if (weight >= WEIGHTS.length) {
+            return weighted(weight);
+        }
+        // a racing thread at worst creates an equal instance, which is safe to publish
+        SampleRate rate = WEIGHTS[weight];
+        if (rate == null) {
+            rate = weighted(weight);
+            WEIGHTS[weight] = rate;
+        }
+        return rate;
+    }
+
+    private static SampleRate weighted(int weight) {
+        // four significant digits keep the count the server derives within 0.05%
+        final BigDecimal rate = BigDecimal.ONE.divide(BigDecimal.valueOf(weight),
+                new MathContext(4));
+        return new SampleRate(rate.doubleValue(),
+                ("|@" + rate.stripTrailingZeros().toPlainString()).getBytes());
+    }
+
+    /**
+     * Returns the {@code |@rate} annotation for the given rate, or nothing for a rate of 1.
+     */
+    static byte[] encode(double rate) {
+        if (rate >= 1) {
+            return ALWAYS.suffix;
+        }
+        // toPlainString, since Double.toString writes small rates like 1.0E-4
+        return ("|@" + BigDecimal.valueOf(rate).stripTrailingZeros().toPlainString()).getBytes();
+    }
+
+    /**
+     * Decides whether to send the next value.
+     *
+     * @return {@code true} for a fraction {@link #rate} of calls
+     */
+    boolean sample() {
+        if (this == ALWAYS) {
+            return true;
+        }
+        final long[] seed = SEEDS.get();
+        long x = seed[0];
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        seed[0] = x;
+        return (x >>> 11) * UNIT < rate;
+    }
+}
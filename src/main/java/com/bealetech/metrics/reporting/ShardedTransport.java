@@ -0,0 +1,453 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StatsdTransport} which spreads lines across several StatsD servers, always sending a
+ * given metric name to the same server so that each server aggregates its names correctly.
+ * <p>
+ * Every line of a payload is routed by a consistent hash of its name, the bytes before the first
+ * {@code :}. Each shard owns many points on a hash ring, derived from its key, so adding or
+ * removing a shard only moves the names nearest its points, and reordering shards moves none.
+ * Shards given as a list are keyed by their {@code toString()}, such as {@code udp://host:port},
+ * which must then be unique; pass a map to key them explicitly.
+ * <p>
+ * Lines are gathered in a separate buffer of at most {@code maxPayloadSize} bytes per shard, sent
+ * as the buffer fills and at the end of each batch.
+ * <p>
+ * A shard whose connection or send fails is taken out of the ring until the retry interval has
+ * passed, and its names move to the next healthy shard on the ring meanwhile. The lines of the
+ * datagram which failed are routed again, so they are not lost. Not thread-safe.
+ * <p>
+ * The transport is also a {@link MetricSet}, exposing failed shard sends, lines routed away from
+ * an unhealthy shard, and the number of shards currently out of the ring.
+ */
+public class ShardedTransport implements StatsdTransport, MetricSet {
+
+    /**
+     * The default time a failed shard is left out of the ring.
+     */
+    public static final long DEFAULT_RETRY_SECONDS = 30;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedTransport.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // enough points per shard to spread names evenly, even across a handful of shards
+    private static final int POINTS_PER_SHARD = 160;
+
+    private final StatsdTransport[] shards;
+    private final PacketBuffer[] buffers;
+    private final boolean[] connected;
+    private final long[] downSince;
+    private final boolean[] down;
+    private final long retryNanos;
+
+    private final long[] ring;
+    private final int[] owners;
+
+    private byte[] scratch;
+
+    private final AtomicLong shardFailures = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * @param shards the transports to spread lines across, at least one, keyed by their
+     *               {@code toString()}
+     * @throws IllegalArgumentException if two shards have the same {@code toString()}
+     */
+    public ShardedTransport(List<? extends StatsdTransport> shards) {
+        this(shards, Statsd.DEFAULT_MAX_PAYLOAD_SIZE, DEFAULT_RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param shards         the transports to spread lines across, at least one, keyed by their
+     *                       {@code toString()}
+     * @param maxPayloadSize the largest datagram sent to a shard
+     * @param retryInterval  how long a failed shard is left out of the ring
+     * @param unit           the unit of {@code retryInterval}
+     * @throws IllegalArgumentException if two shards have the same {@code toString()}
+     */
+    public ShardedTransport(List<? extends StatsdTransport> shards,
+                            int maxPayloadSize,
+                            long retryInterval,
+                            TimeUnit unit) {
+        this(keyedByDescription(shards), maxPayloadSize, retryInterval, unit);
+    }
+
+    /**
+     * @param shards the transports to spread lines across, at least one, each under a key such
+     *               as its server's {@code host:port} which stays the same across restarts
+     */
+    public ShardedTransport(Map<String, ? extends StatsdTransport> shards) {
+        this(shards, Statsd.DEFAULT_MAX_PAYLOAD_SIZE, DEFAULT_RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param shards         the transports to spread lines across, at least one, each under a
+     *                       key such as its server's {@code host:port} which stays the same
+     *                       across restarts
+     * @param maxPayloadSize the largest datagram sent to a shard
+     * @param retryInterval  how long a failed shard is left out of the ring
+     * @param unit           the unit of {@code retryInterval}
+     */
+    public ShardedTransport(Map<String, ? extends StatsdTransport> shards,
+                            int maxPayloadSize,
+                            long retryInterval,
+                            TimeUnit unit) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("at least one shard is required");
+        }
+        if (maxPayloadSize <= 0 || maxPayloadSize > Statsd.MAX_UDP_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("maxPayloadSize must be between 1 and " +
+                    Statsd.MAX_UDP_PAYLOAD_SIZE + ": " + maxPayloadSize);
+        }
+        this.shards = shards.values().toArray(new StatsdTransport[shards.size()]);
+        final String[] keys = shards.keySet().toArray(new String[shards.size()]);
+        this.buffers = new PacketBuffer[this.shards.length];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new PacketBuffer(maxPayloadSize);
+        }
+        this.connected = new boolean[this.shards.length];
+        this.downSince = new long[this.shards.length];
+        this.down = new boolean[this.shards.length];
+        this.retryNanos = unit.toNanos(retryInterval);
+        this.scratch = new byte[maxPayloadSize];
+
+        // points are derived from each shard's key rather than its position, so that reordering
+        // the shards does not move any names
+        final int points = this.shards.length * POINTS_PER_SHARD;
+        final long[] hashes = new long[points];
+        final int[] pointOwners = new int[points];
+        for (int s = 0, p = 0; s < this.shards.length; s++) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++, p++) {
+                final byte[] point = (keys[s] + "#" + i).getBytes(UTF_8);
+                hashes[p] = hash(point, 0, point.length);
+                pointOwners[p] = s;
+            }
+        }
+        final Integer[] order = new Integer[points];
+        for (int p = 0; p < points; p++) {
+            order[p] = p;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                final long x = hashes[a];
+                final long y = hashes[b];
+                return x < y ? -1 : (x == y ? pointOwners[a] - pointOwners[b] : 1);
+            }
+        });
+        this.ring = new long[points];
+        this.owners = new int[points];
+        for (int p = 0; p < points; p++) {
+            ring[p] = hashes[order[p]];
+            owners[p] = pointOwners[order[p]];
+        }
+    }
+
+    private static Map<String, StatsdTransport> keyedByDescription(
+            List<? extends StatsdTransport> shards) {
+        final Map<String, StatsdTransport> keyed = new LinkedHashMap<String, StatsdTransport>();
+        for (StatsdTransport shard : shards) {
+            if (keyed.put(shard.toString(), shard) != null) {
+                throw new IllegalArgumentException("shards must be described uniquely, but " +
+                        "more than one is " + shard + "; pass them keyed in a map instead");
+            }
+        }
+        return keyed;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        int healthy = 0;
+        for (int s = 0; s < shards.length; s++) {
+            if (down[s] && System.nanoTime() - downSince[s] < retryNanos) {
+                continue;
+            }
+            try {
+                shards[s].connect();
+                connected[s] = true;
+                if (down[s]) {
+                    LOGGER.info("Returning StatsD shard {} to the ring", shards[s]);
+                    down[s] = false;
+                }
+                healthy++;
+            } catch (IOException e) {
+                failed(s, e);
+            }
+        }
+        if (healthy == 0) {
+            throw new IOException("No healthy StatsD shard among " + this);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer payload) throws IOException {
+        final int length = payload.remaining();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        payload.get(scratch, 0, length);
+        routeLines(scratch, length);
+    }
+
+    /**
+     * Sends every shard's buffered lines and ends the batch on every shard.
+     */
+    @Override
+    public void disconnect() {
+        try {
+            // a failed flush routes its lines to other shards, possibly ones already flushed, so
+            // repeat until every buffer is empty; each extra pass takes another shard out
+            boolean flushed = true;
+            while (flushed) {
+                flushed = false;
+                for (int s = 0; s < shards.length; s++) {
+                    if (!buffers[s].isEmpty()) {
+                        flush(s);
+                        flushed = true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to send buffered lines to StatsD", e);
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (connected[s]) {
+                connected[s] = false;
+                shards[s].disconnect();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (int s = 0; s < shards.length; s++) {
+            buffers[s].clear();
+            connected[s] = false;
+            shards[s].close();
+        }
+    }
+
+    /**
+     * Returns the number of times connecting or sending to a shard has failed.
+     *
+     * @return the number of shard failures
+     */
+    public long getShardFailures() {
+        return shardFailures.get();
+    }
+
+    /**
+     * Returns the number of lines sent to another shard because their own was unhealthy.
+     *
+     * @return the number of lines failed over
+     */
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    /**
+     * Returns the number of shards currently left out of the ring.
+     *
+     * @return the number of unhealthy shards
+     */
+    public int getUnhealthyShards() {
+        int unhealthy = 0;
+        for (boolean isDown : down) {
+            if (isDown) {
+                unhealthy++;
+            }
+        }
+        return unhealthy;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+        metrics.put("shard-failures", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getShardFailures();
+            }
+        });
+        metrics.put("failovers", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getFailovers();
+            }
+        });
+        metrics.put("unhealthy-shards", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getUnhealthyShards();
+            }
+        });
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Returns the shard the given name is sent to while every shard is healthy.
+     */
+    int shardOf(String name) {
+        final byte[] bytes = StatsdLineEncoder.encodeName(name);
+        return owners[point(hash(bytes, 0, bytes.length))];
+    }
+
+    private void routeLines(byte[] lines, int length) throws IOException {
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || lines[i] == '\n') {
+                if (i > start) {
+                    route(lines, start, i - start);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    private void route(byte[] line, int offset, int length) throws IOException {
+        int nameLength = 0;
+        while (nameLength < length && line[offset + nameLength] != ':') {
+            nameLength++;
+        }
+        final int shard = healthyShard(hash(line, offset, nameLength));
+
+        final PacketBuffer buffer = buffers[shard];
+        if (buffer.append(line, offset, length)) {
+            return;
+        }
+        if (!flush(shard)) {
+            // the shard was just taken out of the ring, so the line goes to the next one
+            route(line, offset, length);
+        } else if (!buffer.append(line, offset, length) &&
+                !send(shard, ByteBuffer.wrap(line, offset, length))) {
+            // longer than a shard's datagram, so it was sent by itself, but the shard failed
+            route(line, offset, length);
+        }
+    }
+
+    /**
+     * Returns the owner of the first point at or after the hash whose shard is healthy.
+     */
+    private int healthyShard(long hash) throws IOException {
+        final int first = point(hash);
+        for (int i = 0; i < ring.length; i++) {
+            final int shard = owners[(first + i) % ring.length];
+            if (!down[shard]) {
+                if (i > 0) {
+                    failovers.incrementAndGet();
+                }
+                return shard;
+            }
+        }
+        throw new IOException("No healthy StatsD shard among " + this);
+    }
+
+    private int point(long hash) {
+        int i = Arrays.binarySearch(ring, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i == ring.length ? 0 : i;
+    }
+
+    /**
+     * Sends a shard's buffered lines, routing them to other shards if it fails.
+     *
+     * @return whether the shard is still in the ring
+     */
+    private boolean flush(int shard) throws IOException {
+        final PacketBuffer buffer = buffers[shard];
+        if (buffer.isEmpty()) {
+            return true;
+        }
+
+        final ByteBuffer payload = buffer.payload();
+        if (send(shard, payload)) {
+            buffer.clear();
+            return true;
+        }
+        payload.rewind();
+        final byte[] lines = new byte[payload.remaining()];
+        payload.get(lines);
+        buffer.clear();
+        routeLines(lines, lines.length);
+        return false;
+    }
+
+    /**
+     * Sends a datagram to a shard, connecting first if need be, and takes the shard out of the
+     * ring if it fails.
+     *
+     * @return whether the datagram was sent
+     */
+    private boolean send(int shard, ByteBuffer payload) {
+        try {
+            if (!connected[shard]) {
+                shards[shard].connect();
+                connected[shard] = true;
+            }
+            shards[shard].send(payload);
+            return true;
+        } catch (IOException e) {
+            failed(shard, e);
+            return false;
+        }
+    }
+
+    private void failed(int shard, IOException e) {
+        shardFailures.incrementAndGet();
+        if (connected[shard]) {
+            // end the shard's batch, so that it is connected afresh once it is retried
+            connected[shard] = false;
+            shards[shard].disconnect();
+        }
+        if (!down[shard]) {
+            LOGGER.warn("Taking StatsD shard {} out of the ring", shards[shard], e);
+        }
+        down[shard] = true;
+        downSince[shard] = System.nanoTime();
+    }
+
+    /**
+     * A 64-bit FNV-1a hash, finished with MurmurHash3's mixer so that similar names spread
+     * evenly around the ring.
+     */
+    private static long hash(byte[] bytes, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "sharded" + Arrays.toString(shards);
+    }
+}
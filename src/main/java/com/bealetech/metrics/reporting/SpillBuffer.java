@@ -0,0 +1,203 @@
+package com.bealetech.metrics.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A bounded first-in, first-out queue of payloads held outside the Java heap, in a direct buffer
+ * or a memory-mapped file.
+ * <p>
+ * Payloads are stored back to back in a ring, each preceded by its length, and may wrap around
+ * the end of the ring. When a payload does not fit, the oldest ones are evicted to make room.
+ * A mapped file also records where the queue starts and ends, so the payloads it holds survive a
+ * restart. Not thread-safe.
+ */
+final class SpillBuffer {
+    private static final int MAGIC = 0x53504c31;
+    // magic, capacity, count, then the head and tail positions
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+    private static final int LENGTH_SIZE = 4;
+
+    private final ByteBuffer ring;
+    private final ByteBuffer header;
+    private final int capacity;
+    private final RandomAccessFile file;
+    // reused for every length written or read, as the buffer is only used by one thread
+    private final ByteBuffer lengthPrefix = ByteBuffer.allocate(LENGTH_SIZE);
+
+    // positions only ever grow; the byte at position p is at p % capacity in the ring
+    private long head;
+    private long tail;
+    private int count;
+
+    /**
+     * Creates a buffer in direct memory.
+     *
+     * @param capacity the most bytes held, including four bytes of framing per payload
+     */
+    SpillBuffer(int capacity) {
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.header = null;
+        this.file = null;
+    }
+
+    /**
+     * Creates a buffer backed by the given file, resuming the payloads it already holds if it was
+     * written with the same capacity.
+     *
+     * @param file     the file to map
+     * @param capacity the most bytes held, including four bytes of framing per payload
+     * @throws IOException if the file cannot be mapped
+     */
+    SpillBuffer(File file, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer mapped;
+        try {
+            mapped = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity);
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+
+        mapped.position(0).limit(HEADER_SIZE);
+        this.header = mapped.slice();
+        mapped.position(HEADER_SIZE).limit(HEADER_SIZE + capacity);
+        this.ring = mapped.slice();
+
+        if (header.getInt(0) == MAGIC && header.getInt(4) == capacity) {
+            count = header.getInt(8);
+            head = header.getLong(12);
+            tail = header.getLong(20);
+        } else {
+            header.putInt(0, MAGIC);
+            header.putInt(4, capacity);
+            saveHeader();
+        }
+    }
+
+    /**
+     * Returns whether a payload of the given length could ever be held.
+     */
+    boolean fits(int length) {
+        return LENGTH_SIZE + (long) length <= capacity;
+    }
+
+    /**
+     * Appends a payload, evicting the oldest ones until it fits.
+     *
+     * @param payload the bytes between the payload's position and limit, which are consumed
+     * @return the number of payloads evicted
+     */
+    int add(ByteBuffer payload) {
+        final int length = payload.remaining();
+        int evicted = 0;
+        while (capacity - (tail - head) < LENGTH_SIZE + length) {
+            remove();
+            evicted++;
+        }
+
+        lengthPrefix.clear();
+        lengthPrefix.putInt(0, length);
+        write(tail, lengthPrefix);
+        write(tail + LENGTH_SIZE, payload);
+        tail += LENGTH_SIZE + length;
+        count++;
+        saveHeader();
+        return evicted;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long bytes() {
+        return tail - head;
+    }
+
+    /**
+     * Returns the length of the oldest payload.
+     */
+    int peekLength() {
+        lengthPrefix.clear();
+        read(head, lengthPrefix);
+        return lengthPrefix.getInt(0);
+    }
+
+    /**
+     * Copies the oldest payload into the given buffer, which must have room for it.
+     */
+    void peek(ByteBuffer into) {
+        final int length = peekLength();
+        final int limit = into.limit();
+        into.limit(into.position() + length);
+        read(head + LENGTH_SIZE, into);
+        into.limit(limit);
+    }
+
+    /**
+     * Discards the oldest payload.
+     */
+    void remove() {
+        head += LENGTH_SIZE + peekLength();
+        count--;
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+        }
+        saveHeader();
+    }
+
+    void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // the mapping stays valid until it is garbage collected
+            }
+        }
+    }
+
+    private void write(long position, ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            final int offset = (int) (position % capacity);
+            final int chunk = Math.min(bytes.remaining(), capacity - offset);
+            final ByteBuffer source = bytes.duplicate();
+            source.limit(source.position() + chunk);
+            final ByteBuffer target = ring.duplicate();
+            target.position(offset);
+            target.put(source);
+            bytes.position(bytes.position() + chunk);
+            position += chunk;
+        }
+    }
+
+    private void read(long position, ByteBuffer into) {
+        while (into.hasRemaining()) {
+            final int offset = (int) (position % capacity);
+            final int chunk = Math.min(into.remaining(), capacity - offset);
+            final ByteBuffer source = ring.duplicate();
+            source.position(offset).limit(offset + chunk);
+            into.put(source);
+            position += chunk;
+        }
+    }
+
+    private void saveHeader() {
+        if (header != null) {
+            header.putInt(8, count);
+            header.putLong(12, head);
+            header.putLong(20, tail);
+        }
+    }
+}
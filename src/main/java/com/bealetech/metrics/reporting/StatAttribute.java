@@ -0,0 +1,28 @@
+package com.bealetech.metrics.reporting;
+
+/**
+ * The values a {@link StatsdReporter} can send for a timer, histogram or meter. Each value is
+ * sent under the metric's name followed by the attribute's suffix, such as {@code .max}.
+ */
+public enum StatAttribute {
+    MAX("max"),
+    MEAN("mean"),
+    MIN("min"),
+    STDDEV("stddev"),
+    /**
+     * The configured percentiles, sent with suffixes such as {@code .p99} or {@code .p999}.
+     */
+    PERCENTILES(null),
+    COUNT("count"),
+    M1_RATE("m1_rate"),
+    M5_RATE("m5_rate"),
+    M15_RATE("m15_rate"),
+    MEAN_RATE("mean_rate");
+
+    // the suffix of the value's name, or null for percentiles, whose suffixes are configured
+    final String suffix;
+
+    StatAttribute(String suffix) {
+        this.suffix = suffix;
+    }
+}
@@ -4,114 +4,449 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A client to a StatsD server.
+ * <p>
+ * Lines are packed into datagrams of at most {@link #getMaxPayloadSize()} bytes. A datagram is
+ * sent whenever the next line would not fit, so a single report may produce several datagrams,
+ * but a line is never split across two of them.
+ * <p>
+ * Datagrams are delivered by a {@link StatsdTransport}. By default a new socket is opened for
+ * every report; pass a {@link DatagramChannelTransport} to keep one channel open instead.
  */
 public class Statsd implements Closeable {
 
+    /**
+     * The default maximum datagram payload: a 1500 byte Ethernet MTU less room for IP and UDP
+     * headers and options.
+     */
+    public static final int DEFAULT_MAX_PAYLOAD_SIZE = 1432;
+
+    /**
+     * The largest payload a single UDP datagram can carry over IPv4.
+     */
+    public static final int MAX_UDP_PAYLOAD_SIZE = 65507;
+
     private static final Logger logger = LoggerFactory.getLogger(Statsd.class);
 
-    private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // pacing waits shorter than this are carried over, as sleeps are no more precise
+    private static final long MIN_PACING_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static enum StatType {
+        COUNTER("c"), TIMER("ms"), GAUGE("g"), SET("s"),
+        /**
+         * A distribution of values, which the server aggregates across hosts. Not understood by
+         * every server.
+         */
+        DISTRIBUTION("d");
+
+        final byte[] suffix;
 
-    public static enum StatType { COUNTER, TIMER, GAUGE }
+        StatType(String suffix) {
+            this.suffix = suffix.getBytes();
+        }
+    }
+
+    private final StatsdTransport transport;
+    private final int maxPayloadSize;
 
-    private final String host;
-    private final int port;
+    private final PacketBuffer packet;
+    private final StatsdLineEncoder encoder;
+    // the rate of the last sampled line, whose annotation is encoded once
+    private SampleRate lastSampleRate = SampleRate.ALWAYS;
 
-    private boolean prependNewline = false;
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong linesSent = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong sendNanos = new AtomicLong();
+    private final AtomicLong oversizeDrops = new AtomicLong();
 
-    private ByteArrayOutputStream outputData;
-    private DatagramSocket datagramSocket;
-    private Writer writer;
+    private boolean connected;
+    private IOException batchFailure;
+
+    // the time between datagrams of a batch when pacing, and the batch's progress
+    private long pacingNanos;
+    private long batchStart;
+    private long batchDatagrams;
 
     public Statsd(String host, int port) {
-        this.host = host;
-        this.port = port;
+        this(host, port, DEFAULT_MAX_PAYLOAD_SIZE);
+    }
 
-        outputData = new ByteArrayOutputStream();
+    public Statsd(String host, int port, int maxPayloadSize) {
+        this(new DatagramSocketTransport(host, port), maxPayloadSize);
     }
 
-    public void connect() throws IllegalStateException, SocketException {
-        if(datagramSocket != null) {
-            throw new IllegalStateException("Already connected");
+    public Statsd(StatsdTransport transport) {
+        this(transport, DEFAULT_MAX_PAYLOAD_SIZE);
+    }
+
+    public Statsd(StatsdTransport transport, int maxPayloadSize) {
+        if (maxPayloadSize <= 0 || maxPayloadSize > MAX_UDP_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("maxPayloadSize must be between 1 and " +
+                    MAX_UDP_PAYLOAD_SIZE + ": " + maxPayloadSize);
         }
+        this.transport = transport;
+        this.maxPayloadSize = maxPayloadSize;
+
+        packet = new PacketBuffer(maxPayloadSize);
+        encoder = new StatsdLineEncoder(maxPayloadSize);
+    }
 
-        prependNewline = false;
+    public void connect() throws IllegalStateException, IOException {
+        if(connected) {
+            throw new IllegalStateException("Already connected");
+        }
 
-        datagramSocket = new DatagramSocket();
+        transport.connect();
+        connected = true;
+        batchStart = System.nanoTime();
+        batchDatagrams = 0;
 
-        outputData.reset();
-        this.writer = new BufferedWriter(new OutputStreamWriter(outputData));
+        packet.clear();
+        batchFailure = null;
     }
 
     public void send(String name, String value, StatType statType) throws IOException {
-        String statTypeStr = "";
-        switch (statType) {
-            case COUNTER:
-                statTypeStr = "c";
-                break;
-            case GAUGE:
-                statTypeStr = "g";
-                break;
-            case TIMER:
-                statTypeStr = "ms";
-                break;
+        encoder.line(name, value, statType);
+        append(name);
+    }
+
+    public void send(String name, long value, StatType statType) throws IOException {
+        encoder.line(name, value, statType);
+        append(name);
+    }
+
+    public void send(String name, double value, StatType statType) throws IOException {
+        encoder.line(name, value, statType);
+        append(name);
+    }
+
+    /**
+     * Sends a value followed by the given tags.
+     */
+    public void send(String name, long value, StatType statType, Tags tags) throws IOException {
+        encoder.line(name, value, statType);
+        encoder.writeBytes(tags.encoded);
+        append(name);
+    }
+
+    /**
+     * Sends a value followed by the given tags.
+     */
+    public void send(String name, double value, StatType statType, Tags tags)
+            throws IOException {
+        encoder.line(name, value, statType);
+        encoder.writeBytes(tags.encoded);
+        append(name);
+    }
+
+    /**
+     * Sends a value which the caller sent only a fraction of the time, annotated with
+     * {@code |@sampleRate} so that the server scales it back up. A rate of 1 sends a plain line.
+     *
+     * @throws IllegalArgumentException if {@code sampleRate} is not in (0, 1]
+     */
+    public void send(String name, long value, StatType statType, double sampleRate)
+            throws IOException {
+        final byte[] rate = sampleRate(sampleRate).suffix;
+        encoder.line(name, value, statType);
+        encoder.writeBytes(rate);
+        append(name);
+    }
+
+    /**
+     * Sends a value which the caller sent only a fraction of the time, annotated with
+     * {@code |@sampleRate} so that the server scales it back up. A rate of 1 sends a plain line.
+     *
+     * @throws IllegalArgumentException if {@code sampleRate} is not in (0, 1]
+     */
+    public void send(String name, double value, StatType statType, double sampleRate)
+            throws IOException {
+        final byte[] rate = sampleRate(sampleRate).suffix;
+        encoder.line(name, value, statType);
+        encoder.writeBytes(rate);
+        append(name);
+    }
+
+    /**
+     * Returns the given sample rate, reusing the last one when it is the same, since callers
+     * rarely vary their rate from line to line.
+     */
+    SampleRate sampleRate(double sampleRate) {
+        if (lastSampleRate.rate != sampleRate) {
+            lastSampleRate = SampleRate.of(sampleRate);
+        }
+        return lastSampleRate;
+    }
+
+    /**
+     * Sends a value for a name already encoded by the caller. The name must be sanitized and
+     * UTF-8 encoded.
+     */
+    public void send(byte[] name, long value, StatType statType) throws IOException {
+        encoder.line(name, value, statType);
+        append(name);
+    }
+
+    /**
+     * Sends a value for a name already encoded by the caller. The name must be sanitized and
+     * UTF-8 encoded.
+     */
+    public void send(byte[] name, double value, StatType statType) throws IOException {
+        encoder.line(name, value, statType);
+        append(name);
+    }
+
+    /**
+     * Sends a value, followed by the given tags, for a name already encoded by the caller. The
+     * name must be sanitized and UTF-8 encoded.
+     */
+    public void send(byte[] name, long value, StatType statType, Tags tags) throws IOException {
+        encoder.line(name, value, statType);
+        encoder.writeBytes(tags.encoded);
+        append(name);
+    }
+
+    /**
+     * Sends a value, followed by the given tags, for a name already encoded by the caller. The
+     * name must be sanitized and UTF-8 encoded.
+     */
+    public void send(byte[] name, double value, StatType statType, Tags tags)
+            throws IOException {
+        encoder.line(name, value, statType);
+        encoder.writeBytes(tags.encoded);
+        append(name);
+    }
+
+    /**
+     * Sends several values of one metric as multi-value lines, {@code name:v1:v2|type}, each
+     * followed by the given sample rate and tags. Values are written with the given number of
+     * significant digits. Values which do not fit in one datagram are continued on further lines.
+     */
+    void send(byte[] name,
+              double[] values,
+              int offset,
+              int length,
+              int significantDigits,
+              StatType statType,
+              SampleRate rate,
+              Tags tags) throws IOException {
+        final int suffixLength = 1 + statType.suffix.length + rate.suffix.length +
+                tags.encoded.length;
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            encoder.reset();
+            encoder.writeBytes(name);
+            encoder.writeByte((byte) ':');
+            // a single value too large for a datagram is left for append to drop
+            i = encoder.writeValues(values, i, end, suffixLength, significantDigits);
+            encoder.writeType(statType);
+            encoder.writeBytes(rate.suffix);
+            encoder.writeBytes(tags.encoded);
+            append(name);
         }
+    }
 
+    /**
+     * Sends a complete datagram payload, encoded elsewhere, as part of the current batch.
+     */
+    void sendPayload(ByteBuffer payload) {
+        awaitTurn();
+        final int length = payload.remaining();
+        final long start = System.nanoTime();
         try {
-            if (prependNewline) {
-                writer.write("\n");
-            }
-            writer.write(sanitizeString(name));
-            writer.write(":");
-            writer.write(value);
-            writer.write("|");
-            writer.write(statTypeStr);
-            prependNewline = true;
-            writer.flush();
+            transport.send(payload);
+            packetsSent.incrementAndGet();
+            bytesSent.addAndGet(length);
         } catch (IOException e) {
-            logger.error("Error sending to Statsd:", e);
+            sendFailures.incrementAndGet();
+            failed(e);
+        } finally {
+            sendNanos.addAndGet(System.nanoTime() - start);
         }
     }
 
+    /**
+     * Spreads the datagrams of each following batch out in time, sending the {@code n}th
+     * datagram about {@code n} times the given interval after the batch started.
+     *
+     * @param intervalNanos the time between datagrams, or {@code 0} to send them as fast as
+     *                      possible
+     */
+    void pace(long intervalNanos) {
+        pacingNanos = Math.max(0, intervalNanos);
+    }
+
+    /**
+     * Sends any buffered lines and ends the batch started by {@link #connect()}.
+     *
+     * @throws IOException if any datagram of the batch could not be sent
+     */
     @Override
     public void close() throws IOException {
-        DatagramPacket packet = newPacket(outputData);
+        final IOException failure = batchFailure;
+        batchFailure = null;
+        try {
+            if (connected) {
+                flush();
+            }
+        } finally {
+            packet.clear();
+            connected = false;
+            transport.disconnect();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-        packet.setData(outputData.toByteArray());
-        datagramSocket.send(packet);
+    /**
+     * Releases the underlying transport. Call this once the client is no longer needed.
+     */
+    public void shutdown() {
+        transport.close();
+    }
 
-        if(datagramSocket != null) {
-            datagramSocket.close();
-        }
-        this.datagramSocket = null;
-        this.writer = null;
+    /**
+     * Returns the maximum number of bytes sent in a single datagram.
+     *
+     * @return the maximum datagram payload size
+     */
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    /**
+     * Returns the number of datagrams sent since this client was created.
+     *
+     * @return the number of datagrams sent
+     */
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    /**
+     * Returns the number of payload bytes sent since this client was created.
+     *
+     * @return the number of bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Returns the number of lines sent in datagrams since this client was created.
+     *
+     * @return the number of lines sent
+     */
+    public long getLinesSent() {
+        return linesSent.get();
+    }
+
+    /**
+     * Returns the number of datagrams which could not be sent since this client was created.
+     *
+     * @return the number of failed datagrams
+     */
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    /**
+     * Returns the total time spent handing datagrams to the transport, in nanoseconds.
+     */
+    long getSendNanos() {
+        return sendNanos.get();
+    }
+
+    StatsdTransport getTransport() {
+        return transport;
     }
 
-    private String sanitizeString(String s) {
-        return WHITESPACE.matcher(s).replaceAll("-");
+    /**
+     * Returns the number of lines dropped because they could not fit in a single datagram.
+     *
+     * @return the number of oversize lines dropped
+     */
+    public long getOversizeDrops() {
+        return oversizeDrops.get();
+    }
+
+    private void append(Object name) {
+        if (encoder.isOverflow()) {
+            oversizeDrops.incrementAndGet();
+            logger.warn("Dropping line for {}: larger than the maximum payload of {} bytes",
+                    name instanceof byte[] ? new String((byte[]) name, UTF_8) : name,
+                    maxPayloadSize);
+            return;
+        }
+
+        if (!packet.append(encoder)) {
+            try {
+                flush();
+            } catch (IOException e) {
+                failed(e);
+            }
+            // the packet is empty either way, so the line always fits now
+            packet.append(encoder);
+        }
     }
 
-    private DatagramPacket newPacket(ByteArrayOutputStream out) {
-        byte[] dataBuffer;
+    private void failed(IOException e) {
+        logger.error("Error sending to Statsd:", e);
+        if (batchFailure == null) {
+            batchFailure = e;
+        }
+    }
 
-        if (out != null) {
-            dataBuffer = out.toByteArray();
+    private void awaitTurn() {
+        if (pacingNanos == 0) {
+            return;
         }
-        else {
-            dataBuffer = new byte[8192];
+        final long due = batchStart + batchDatagrams++ * pacingNanos;
+        long wait;
+        // an interrupted thread sends the rest of the batch unpaced
+        while ((wait = due - System.nanoTime()) >= MIN_PACING_WAIT_NANOS &&
+                !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void flush() throws IOException {
+        final int length = packet.size();
+        if (length == 0) {
+            return;
         }
 
+        awaitTurn();
+        final long start = System.nanoTime();
         try {
-            return new DatagramPacket(dataBuffer, dataBuffer.length, InetAddress.getByName(this.host), this.port);
-        } catch (Exception e) {
-            return null;
+            transport.send(packet.payload());
+            packetsSent.incrementAndGet();
+            bytesSent.addAndGet(length);
+            linesSent.addAndGet(packet.lines());
+        } catch (IOException e) {
+            sendFailures.incrementAndGet();
+            throw e;
+        } finally {
+            sendNanos.addAndGet(System.nanoTime() - start);
+            packet.clear();
         }
     }
+
+    @Override
+    public String toString() {
+        return transport.toString();
+    }
 }
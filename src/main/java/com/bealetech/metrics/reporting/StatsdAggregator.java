@@ -0,0 +1,232 @@
+package com.bealetech.metrics.reporting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Combines values recorded between two flushes of a {@link StatsdClient}, so that each flush
+ * sends one line per counter and gauge however often they were updated.
+ * <p>
+ * Counter increments are summed exactly, gauges keep their last value and timer samples are
+ * buffered, up to a limit per timer. Each kind of metric lives in its own
+ * {@link ConcurrentHashMap}, whose lock striping lets unrelated names be updated concurrently;
+ * updates to a single name are lock-free for counters and gauges.
+ * <p>
+ * A name which recorded nothing between two flushes is removed, so that names which are no longer
+ * used are neither kept nor walked by every flush. Its entry is retired first, and an update that
+ * finds a retired entry replaces it, so no update is lost to the removal.
+ */
+final class StatsdAggregator {
+    // a counter's value once it has been retired; no sum of real increments reaches it
+    private static final long RETIRED = Long.MIN_VALUE;
+    private static final GaugeValue RETIRED_GAUGE = new GaugeValue(0, false);
+
+    private final ConcurrentMap<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicReference<GaugeValue>> gauges =
+            new ConcurrentHashMap<String, AtomicReference<GaugeValue>>();
+    private final ConcurrentMap<String, TimerCell> timers =
+            new ConcurrentHashMap<String, TimerCell>();
+
+    private final boolean aggregateValues;
+    private final boolean aggregateTimers;
+    private final int maxTimerSamples;
+    private final boolean multiValueLines;
+    private final AtomicLong droppedSamples = new AtomicLong();
+
+    StatsdAggregator(boolean aggregateValues,
+                     boolean aggregateTimers,
+                     int maxTimerSamples,
+                     boolean multiValueLines) {
+        this.aggregateValues = aggregateValues;
+        this.aggregateTimers = aggregateTimers;
+        this.maxTimerSamples = maxTimerSamples;
+        this.multiValueLines = multiValueLines;
+    }
+
+    boolean isAggregatingValues() {
+        return aggregateValues;
+    }
+
+    boolean isAggregatingTimers() {
+        return aggregateTimers;
+    }
+
+    long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+
+    void count(String name, long delta) {
+        while (true) {
+            AtomicLong counter = counters.get(name);
+            if (counter == null) {
+                final AtomicLong created = new AtomicLong();
+                counter = counters.putIfAbsent(name, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            final long value = counter.get();
+            if (value == RETIRED) {
+                counters.remove(name, counter);
+            } else if (counter.compareAndSet(value, value + delta)) {
+                return;
+            }
+        }
+    }
+
+    void gauge(String name, long value) {
+        gauge(name, new GaugeValue(value, false));
+    }
+
+    void gauge(String name, double value) {
+        gauge(name, new GaugeValue(Double.doubleToRawLongBits(value), true));
+    }
+
+    void timing(String name, double millis) {
+        while (true) {
+            TimerCell timer = timers.get(name);
+            if (timer == null) {
+                final TimerCell created = new TimerCell();
+                timer = timers.putIfAbsent(name, created);
+                if (timer == null) {
+                    timer = created;
+                }
+            }
+            if (timer.add(millis)) {
+                return;
+            }
+            timers.remove(name, timer);
+        }
+    }
+
+    /**
+     * Returns the number of names with an entry.
+     */
+    int size() {
+        return counters.size() + gauges.size() + timers.size();
+    }
+
+    /**
+     * Sends everything recorded since the last drain through the given client.
+     */
+    void drain(StatsdClient client) {
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            final AtomicLong counter = entry.getValue();
+            final long delta = counter.getAndSet(0);
+            if (delta != 0) {
+                client.send(entry.getKey(), delta, Statsd.StatType.COUNTER);
+            } else if (counter.compareAndSet(0, RETIRED)) {
+                counters.remove(entry.getKey(), counter);
+            }
+        }
+
+        for (Map.Entry<String, AtomicReference<GaugeValue>> entry : gauges.entrySet()) {
+            final AtomicReference<GaugeValue> gauge = entry.getValue();
+            // taken, so that a gauge is only sent again once it is set again
+            final GaugeValue value = gauge.getAndSet(null);
+            if (value == null) {
+                if (gauge.compareAndSet(null, RETIRED_GAUGE)) {
+                    gauges.remove(entry.getKey(), gauge);
+                }
+            } else if (value.fractional) {
+                client.send(entry.getKey(), Double.longBitsToDouble(value.bits),
+                        Statsd.StatType.GAUGE);
+            } else {
+                client.send(entry.getKey(), value.bits, Statsd.StatType.GAUGE);
+            }
+        }
+
+        for (Map.Entry<String, TimerCell> entry : timers.entrySet()) {
+            final TimerCell timer = entry.getValue();
+            final double[] samples;
+            final int count;
+            synchronized (timer) {
+                if (timer.count == 0) {
+                    timer.retired = true;
+                    timers.remove(entry.getKey(), timer);
+                    continue;
+                }
+                // swap buffers so recording can continue while the samples are sent
+                samples = timer.samples;
+                count = timer.count;
+                timer.samples = timer.spare.length >= samples.length ?
+                        timer.spare : new double[samples.length];
+                timer.spare = samples;
+                timer.count = 0;
+            }
+            // the samples were taken as they were recorded, so carry the rate along
+            final SampleRate rate = client.sampleRate(entry.getKey());
+            if (multiValueLines) {
+                client.send(entry.getKey(), samples, count, Statsd.StatType.TIMER, rate);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    client.send(entry.getKey(), samples[i], Statsd.StatType.TIMER, rate);
+                }
+            }
+        }
+    }
+
+    private void gauge(String name, GaugeValue value) {
+        while (true) {
+            AtomicReference<GaugeValue> gauge = gauges.get(name);
+            if (gauge == null) {
+                final AtomicReference<GaugeValue> created = new AtomicReference<GaugeValue>();
+                gauge = gauges.putIfAbsent(name, created);
+                if (gauge == null) {
+                    gauge = created;
+                }
+            }
+            final GaugeValue current = gauge.get();
+            if (current == RETIRED_GAUGE) {
+                gauges.remove(name, gauge);
+            } else if (gauge.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A gauge's last value, replaced as a whole so that its bits and type always agree.
+     */
+    private static final class GaugeValue {
+        final long bits;
+        final boolean fractional;
+
+        GaugeValue(long bits, boolean fractional) {
+            this.bits = bits;
+            this.fractional = fractional;
+        }
+    }
+
+    private final class TimerCell {
+        double[] samples = new double[16];
+        double[] spare = new double[16];
+        int count;
+        // set once the timer is removed, after which samples go to a new one
+        boolean retired;
+
+        /**
+         * Adds a sample, returning {@code false} if the timer was retired.
+         */
+        synchronized boolean add(double millis) {
+            if (retired) {
+                return false;
+            }
+            if (count == samples.length) {
+                if (count >= maxTimerSamples) {
+                    droppedSamples.incrementAndGet();
+                    return true;
+                }
+                final double[] grown = new double[Math.min(count * 2, maxTimerSamples)];
+                System.arraycopy(samples, 0, grown, 0, count);
+                samples = grown;
+            }
+            samples[count++] = millis;
+            return true;
+        }
+    }
+}
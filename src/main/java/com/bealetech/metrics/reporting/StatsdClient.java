@@ -0,0 +1,712 @@
+package com.bealetech.metrics.reporting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe StatsD client for recording values directly from application code.
+ * <p>
+ * Each call encodes a single line into one of several striped packet buffers, picked by the
+ * calling thread, so threads rarely contend with one another. Once the next line would not fit in
+ * a datagram, the full buffer is swapped for a spare and queued, and a dedicated sender thread
+ * sends it, so recording a value never waits on the network. Partially filled buffers are sent
+ * every flush interval. When {@link #MAX_QUEUED_DATAGRAMS} datagrams are already waiting, further
+ * full buffers are dropped and counted.
+ *
+ * @see StatsdReporter for reporting the contents of a {@link com.codahale.metrics.MetricRegistry}
+ */
+public class StatsdClient implements Closeable {
+
+    /**
+     * Returns a new {@link Builder} for {@link StatsdClient}.
+     *
+     * @param transport the transport to send datagrams with
+     * @return a {@link Builder} instance for a {@link StatsdClient}
+     */
+    public static Builder forTransport(StatsdTransport transport) {
+        return new Builder(transport);
+    }
+
+    /**
+     * A builder for {@link StatsdClient} instances. Defaults to not using a prefix, sending
+     * datagrams of at most {@link Statsd#DEFAULT_MAX_PAYLOAD_SIZE} bytes, flushing every second,
+     * using two buffers per available processor and sending every value as it is recorded.
+     */
+    public static class Builder {
+        private final StatsdTransport transport;
+        private String prefix;
+        private int maxPayloadSize;
+        private long flushInterval;
+        private TimeUnit flushIntervalUnit;
+        private int stripes;
+        private boolean aggregate;
+        private boolean aggregateTimers;
+        private boolean multiValueLines;
+        private SampleRate sampleRate;
+        private final Map<String, SampleRate> sampleRates;
+
+        private Builder(StatsdTransport transport) {
+            this.transport = transport;
+            this.prefix = null;
+            this.maxPayloadSize = Statsd.DEFAULT_MAX_PAYLOAD_SIZE;
+            this.flushInterval = 1;
+            this.flushIntervalUnit = TimeUnit.SECONDS;
+            this.stripes = Runtime.getRuntime().availableProcessors() * 2;
+            this.aggregate = false;
+            this.aggregateTimers = false;
+            this.multiValueLines = false;
+            this.sampleRate = SampleRate.ALWAYS;
+            this.sampleRates = new HashMap<String, SampleRate>();
+        }
+
+        /**
+         * Prefix all metric names with the given string.
+         *
+         * @param prefix the prefix for all metric names
+         * @return {@code this}
+         */
+        public Builder prefixedWith(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * Send datagrams of at most the given size.
+         *
+         * @param maxPayloadSize the maximum datagram payload, in bytes
+         * @return {@code this}
+         */
+        public Builder maxPayloadSize(int maxPayloadSize) {
+            this.maxPayloadSize = maxPayloadSize;
+            return this;
+        }
+
+        /**
+         * Send partially filled datagrams after the given interval.
+         *
+         * @param flushInterval the longest time a recorded value may wait to be sent
+         * @param unit          the unit of {@code flushInterval}
+         * @return {@code this}
+         */
+        public Builder flushEvery(long flushInterval, TimeUnit unit) {
+            this.flushInterval = flushInterval;
+            this.flushIntervalUnit = unit;
+            return this;
+        }
+
+        /**
+         * Use the given number of buffers. Rounded up to a power of two.
+         *
+         * @param stripes the number of buffers threads are spread across
+         * @return {@code this}
+         */
+        public Builder stripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Combine counter increments and gauge updates between flushes, sending a single line
+         * per counter and gauge per flush interval.
+         *
+         * @param aggregate whether to combine counters and gauges
+         * @return {@code this}
+         */
+        public Builder aggregate(boolean aggregate) {
+            this.aggregate = aggregate;
+            return this;
+        }
+
+        /**
+         * Buffer timer samples between flushes rather than sending them as they are recorded.
+         * At most {@link #MAX_TIMER_SAMPLES} samples are kept per timer and flush interval.
+         *
+         * @param aggregateTimers whether to buffer timer samples
+         * @return {@code this}
+         */
+        public Builder aggregateTimers(boolean aggregateTimers) {
+            this.aggregateTimers = aggregateTimers;
+            return this;
+        }
+
+        /**
+         * Send the timer samples buffered by {@link #aggregateTimers(boolean)} as multi-value
+         * lines, such as {@code latency:12.00:3.00|ms}, as long as they fit in a datagram, rather
+         * than repeating the name for every sample. Not every server understands these.
+         *
+         * @param multiValueLines whether to pack each timer's samples into one line
+         * @return {@code this}
+         */
+        public Builder multiValueLines(boolean multiValueLines) {
+            this.multiValueLines = multiValueLines;
+            return this;
+        }
+
+        /**
+         * Send only the given fraction of counter increments and timings, annotated with
+         * {@code |@rate} so that the server scales them back up. Counters combined by
+         * {@link #aggregate(boolean)} are exact and never sampled; gauges and sets are never
+         * sampled either.
+         *
+         * @param sampleRate the fraction of values to send, greater than 0 and at most 1
+         * @return {@code this}
+         * @throws IllegalArgumentException if {@code sampleRate} is out of range
+         */
+        public Builder sampleRate(double sampleRate) {
+            this.sampleRate = SampleRate.of(sampleRate);
+            return this;
+        }
+
+        /**
+         * Send only the given fraction of the named counter's increments or timer's timings,
+         * overriding {@link #sampleRate(double)}.
+         *
+         * @param name       the counter's or timer's name, without the prefix
+         * @param sampleRate the fraction of values to send, greater than 0 and at most 1
+         * @return {@code this}
+         * @throws IllegalArgumentException if {@code sampleRate} is out of range
+         */
+        public Builder sampleRate(String name, double sampleRate) {
+            this.sampleRates.put(name, SampleRate.of(sampleRate));
+            return this;
+        }
+
+        /**
+         * Builds a {@link StatsdClient} with the given properties.
+         *
+         * @return a {@link StatsdClient}
+         */
+        public StatsdClient build() {
+            return new StatsdClient(transport,
+                    prefix,
+                    maxPayloadSize,
+                    flushInterval,
+                    flushIntervalUnit,
+                    stripes,
+                    aggregate || aggregateTimers ?
+                            new StatsdAggregator(aggregate, aggregateTimers,
+                                    MAX_TIMER_SAMPLES, multiValueLines) : null,
+                    sampleRate,
+                    new HashMap<String, SampleRate>(sampleRates));
+        }
+    }
+
+    /**
+     * The most samples buffered per timer and flush interval when timers are aggregated.
+     */
+    public static final int MAX_TIMER_SAMPLES = 10000;
+
+    /**
+     * The most full datagrams waiting for the sender thread. Datagrams filled while this many are
+     * waiting are dropped.
+     */
+    public static final int MAX_QUEUED_DATAGRAMS = 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatsdClient.class);
+
+    private final StatsdTransport transport;
+    private final byte[] prefix;
+    private final int maxPayloadSize;
+    private final Stripe[] stripes;
+    private final int mask;
+    private final long flushNanos;
+    private final Thread sender;
+    private volatile boolean running = true;
+    private final StatsdAggregator aggregator;
+    private final SampleRate sampleRate;
+    private final Map<String, SampleRate> sampleRates;
+
+    private final Queue<PacketBuffer> queue = new ConcurrentLinkedQueue<PacketBuffer>();
+    private final Queue<PacketBuffer> spares = new ConcurrentLinkedQueue<PacketBuffer>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // held while sending queued datagrams, by the sender thread or by an explicit flush
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private boolean connected;
+
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private final AtomicLong oversizeDrops = new AtomicLong();
+
+    private StatsdClient(StatsdTransport transport,
+                         String prefix,
+                         int maxPayloadSize,
+                         long flushInterval,
+                         TimeUnit flushIntervalUnit,
+                         int stripes,
+                         StatsdAggregator aggregator,
+                         SampleRate sampleRate,
+                         Map<String, SampleRate> sampleRates) {
+        if (maxPayloadSize <= 0 || maxPayloadSize > Statsd.MAX_UDP_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("maxPayloadSize must be between 1 and " +
+                    Statsd.MAX_UDP_PAYLOAD_SIZE + ": " + maxPayloadSize);
+        }
+        this.transport = transport;
+        this.aggregator = aggregator;
+        this.sampleRate = sampleRate;
+        this.sampleRates = sampleRates;
+        this.prefix = prefix == null || prefix.length() == 0 ?
+                new byte[0] : StatsdLineEncoder.encodeName(prefix + ".");
+        this.maxPayloadSize = maxPayloadSize;
+        this.flushNanos = flushIntervalUnit.toNanos(flushInterval);
+
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe(maxPayloadSize);
+        }
+        this.mask = size - 1;
+
+        this.sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendUntilClosed();
+            }
+        }, "statsd-client-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Increments a counter by one.
+     *
+     * @param name the counter's name
+     */
+    public void increment(String name) {
+        increment(name, 1);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param name  the counter's name
+     * @param delta the amount to add, which may be negative
+     */
+    public void increment(String name, long delta) {
+        if (aggregator != null && aggregator.isAggregatingValues()) {
+            aggregator.count(name, delta);
+        } else {
+            final SampleRate rate = sampleRate(name);
+            if (rate.sample()) {
+                send(name, delta, Statsd.StatType.COUNTER, rate);
+            }
+        }
+    }
+
+    /**
+     * Records a duration in milliseconds.
+     *
+     * @param name   the timer's name
+     * @param millis the duration in milliseconds
+     */
+    public void timing(String name, long millis) {
+        final SampleRate rate = sampleRate(name);
+        if (!rate.sample()) {
+            return;
+        }
+        if (aggregator != null && aggregator.isAggregatingTimers()) {
+            aggregator.timing(name, millis);
+        } else {
+            send(name, millis, Statsd.StatType.TIMER, rate);
+        }
+    }
+
+    /**
+     * Records a duration, converted to fractional milliseconds.
+     *
+     * @param name     the timer's name
+     * @param duration the duration
+     * @param unit     the unit of {@code duration}
+     */
+    public void timing(String name, long duration, TimeUnit unit) {
+        final SampleRate rate = sampleRate(name);
+        if (!rate.sample()) {
+            return;
+        }
+        final double millis = unit.toMicros(duration) / 1000.0;
+        if (aggregator != null && aggregator.isAggregatingTimers()) {
+            aggregator.timing(name, millis);
+        } else {
+            send(name, millis, Statsd.StatType.TIMER, rate);
+        }
+    }
+
+    /**
+     * Sets a gauge.
+     *
+     * @param name  the gauge's name
+     * @param value the gauge's value
+     */
+    public void gauge(String name, long value) {
+        if (aggregator != null && aggregator.isAggregatingValues()) {
+            aggregator.gauge(name, value);
+        } else {
+            send(name, value, Statsd.StatType.GAUGE);
+        }
+    }
+
+    /**
+     * Sets a gauge.
+     *
+     * @param name  the gauge's name
+     * @param value the gauge's value
+     */
+    public void gauge(String name, double value) {
+        if (aggregator != null && aggregator.isAggregatingValues()) {
+            aggregator.gauge(name, value);
+        } else {
+            send(name, value, Statsd.StatType.GAUGE);
+        }
+    }
+
+    /**
+     * Adds a value to a set, whose number of unique values the server counts.
+     *
+     * @param name  the set's name
+     * @param value the value
+     */
+    public void set(String name, long value) {
+        send(name, value, Statsd.StatType.SET);
+    }
+
+    /**
+     * Adds a value to a set, whose number of unique values the server counts. Whitespace in the
+     * value is replaced as it is in names.
+     *
+     * @param name  the set's name
+     * @param value the value
+     */
+    public void set(String name, String value) {
+        final Stripe stripe = stripe();
+        stripe.lock.lock();
+        try {
+            final StatsdLineEncoder encoder = stripe.begin(name);
+            encoder.writeName(value);
+            encoder.writeType(Statsd.StatType.SET);
+            stripe.append(name);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Sends any aggregated values and every partially filled buffer, along with the datagrams
+     * already waiting for the sender thread, before returning.
+     */
+    public void flush() {
+        if (aggregator != null) {
+            aggregator.drain(this);
+        }
+
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                if (!stripe.packet.isEmpty()) {
+                    stripe.handOff();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        sendLock.lock();
+        try {
+            sendQueued();
+            // end the batch, so per-report transports release their socket and persistent ones
+            // get the chance to look the server's address up again
+            if (connected) {
+                transport.disconnect();
+                connected = false;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends any buffered values and releases the transport.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(sender);
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        transport.close();
+    }
+
+    /**
+     * Returns the number of datagrams sent.
+     *
+     * @return the number of datagrams sent
+     */
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    /**
+     * Returns the number of payload bytes sent.
+     *
+     * @return the number of bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Returns the number of datagrams which could not be sent.
+     *
+     * @return the number of failed datagrams
+     */
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    /**
+     * Returns the number of full datagrams dropped because {@link #MAX_QUEUED_DATAGRAMS} were
+     * already waiting to be sent.
+     *
+     * @return the number of datagrams dropped
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    /**
+     * Returns the number of timer samples dropped because a timer's buffer was full.
+     *
+     * @return the number of timer samples dropped
+     */
+    public long getDroppedTimerSamples() {
+        return aggregator == null ? 0 : aggregator.getDroppedSamples();
+    }
+
+    /**
+     * Returns the number of values dropped because their line could not fit in a datagram.
+     *
+     * @return the number of oversize lines dropped
+     */
+    public long getOversizeDrops() {
+        return oversizeDrops.get();
+    }
+
+    /**
+     * Returns the sample rate of the named counter or timer.
+     */
+    SampleRate sampleRate(String name) {
+        if (sampleRates.isEmpty()) {
+            return sampleRate;
+        }
+        final SampleRate rate = sampleRates.get(name);
+        return rate == null ? sampleRate : rate;
+    }
+
+    /**
+     * Encodes a line into the calling thread's buffer, bypassing any aggregation.
+     */
+    void send(String name, long value, Statsd.StatType statType) {
+        send(name, value, statType, SampleRate.ALWAYS);
+    }
+
+    /**
+     * Encodes a line into the calling thread's buffer, bypassing any aggregation.
+     */
+    void send(String name, double value, Statsd.StatType statType) {
+        send(name, value, statType, SampleRate.ALWAYS);
+    }
+
+    /**
+     * Encodes several values of one metric as multi-value lines, each holding as many values as
+     * fit in a datagram.
+     */
+    void send(String name, double[] values, int count, Statsd.StatType statType,
+              SampleRate rate) {
+        final int suffixLength = 1 + statType.suffix.length + rate.suffix.length;
+        final Stripe stripe = stripe();
+        stripe.lock.lock();
+        try {
+            int i = 0;
+            while (i < count) {
+                final StatsdLineEncoder encoder = stripe.begin(name);
+                i = encoder.writeValues(values, i, count, suffixLength);
+                encoder.writeType(statType);
+                encoder.writeBytes(rate.suffix);
+                stripe.append(name);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a line for a value which was sampled at the given rate.
+     */
+    void send(String name, long value, Statsd.StatType statType, SampleRate rate) {
+        final Stripe stripe = stripe();
+        stripe.lock.lock();
+        try {
+            final StatsdLineEncoder encoder = stripe.begin(name);
+            encoder.writeLong(value);
+            encoder.writeType(statType);
+            encoder.writeBytes(rate.suffix);
+            stripe.append(name);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a line for a value which was sampled at the given rate.
+     */
+    void send(String name, double value, Statsd.StatType statType, SampleRate rate) {
+        final Stripe stripe = stripe();
+        stripe.lock.lock();
+        try {
+            final StatsdLineEncoder encoder = stripe.begin(name);
+            encoder.writeDouble(value);
+            encoder.writeType(statType);
+            encoder.writeBytes(rate.suffix);
+            stripe.append(name);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Stripe stripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    /**
+     * Queues a full buffer for the sender thread, or drops it if too many are already waiting.
+     */
+    private void queue(PacketBuffer packet) {
+        if (queued.incrementAndGet() > MAX_QUEUED_DATAGRAMS) {
+            queued.decrementAndGet();
+            droppedPackets.incrementAndGet();
+            recycle(packet);
+            return;
+        }
+        queue.offer(packet);
+        LockSupport.unpark(sender);
+    }
+
+    private PacketBuffer spare() {
+        final PacketBuffer spare = spares.poll();
+        return spare == null ? new PacketBuffer(maxPayloadSize) : spare;
+    }
+
+    private void recycle(PacketBuffer packet) {
+        // buffers are only created to replace ones in the queue, so the spares stay bounded
+        packet.clear();
+        spares.offer(packet);
+    }
+
+    private void sendUntilClosed() {
+        long nextFlush = System.nanoTime() + flushNanos;
+        while (running) {
+            if (System.nanoTime() - nextFlush >= 0) {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unable to flush to StatsD server {}", transport, e);
+                }
+                nextFlush = System.nanoTime() + flushNanos;
+            } else if (!queue.isEmpty()) {
+                sendLock.lock();
+                try {
+                    sendQueued();
+                } finally {
+                    sendLock.unlock();
+                }
+            } else {
+                LockSupport.parkNanos(this, nextFlush - System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Sends the queued datagrams. The caller holds {@link #sendLock}.
+     */
+    private void sendQueued() {
+        PacketBuffer packet;
+        while ((packet = queue.poll()) != null) {
+            queued.decrementAndGet();
+            final int length = packet.size();
+            try {
+                if (!connected) {
+                    transport.connect();
+                    connected = true;
+                }
+                transport.send(packet.payload());
+                packetsSent.incrementAndGet();
+                bytesSent.addAndGet(length);
+            } catch (IOException e) {
+                sendFailures.incrementAndGet();
+                LOGGER.debug("Unable to send to StatsD server {}", transport, e);
+            } finally {
+                recycle(packet);
+            }
+        }
+    }
+
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final StatsdLineEncoder encoder;
+        // replaced by a spare whenever it is handed to the sender thread
+        PacketBuffer packet;
+
+        Stripe(int maxPayloadSize) {
+            this.encoder = new StatsdLineEncoder(maxPayloadSize);
+            this.packet = new PacketBuffer(maxPayloadSize);
+        }
+
+        /**
+         * Queues the buffer for the sender thread and carries on with a spare.
+         */
+        void handOff() {
+            queue(packet);
+            packet = spare();
+        }
+
+        StatsdLineEncoder begin(String name) {
+            encoder.reset();
+            encoder.writeBytes(prefix);
+            encoder.writeName(name);
+            encoder.writeByte((byte) ':');
+            return encoder;
+        }
+
+        void append(String name) {
+            if (encoder.isOverflow()) {
+                oversizeDrops.incrementAndGet();
+                LOGGER.debug("Dropping line for {}: larger than the maximum payload", name);
+                return;
+            }
+            if (!packet.append(encoder)) {
+                handOff();
+                packet.append(encoder);
+            }
+        }
+    }
+}
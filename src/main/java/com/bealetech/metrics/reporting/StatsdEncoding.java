@@ -0,0 +1,48 @@
+package com.bealetech.metrics.reporting;
+
+/**
+ * The encoding of names and values used by this library's clients, for other clients which must
+ * send exactly the same lines, such as the {@code LockFreeStatsdClient} of the
+ * {@code metrics-statsd-java21} artifact.
+ * <p>
+ * Names are UTF-8 encoded with every run of whitespace replaced by a single {@code -}. Doubles
+ * are written with two decimal places, rounding half up, and without a sign when they round to
+ * zero.
+ */
+public final class StatsdEncoding {
+
+    private StatsdEncoding() {
+    }
+
+    /**
+     * Returns the sanitized, UTF-8 encoded form of a metric name.
+     *
+     * @param name a metric name
+     * @return the encoded name
+     */
+    public static byte[] encodeName(String name) {
+        return StatsdLineEncoder.encodeName(name);
+    }
+
+    /**
+     * Returns the number of bytes a double is encoded in.
+     *
+     * @param value a value
+     * @return the length of its encoded form
+     */
+    public static int doubleLength(double value) {
+        return StatsdLineEncoder.doubleLength(value);
+    }
+
+    /**
+     * Writes the encoded form of a double into the given array.
+     *
+     * @param value  a value
+     * @param bytes  an array with room for {@link #doubleLength(double)} bytes from the offset
+     * @param offset the index to write the value at
+     * @return the index after the value
+     */
+    public static int encodeDouble(double value, byte[] bytes, int offset) {
+        return StatsdLineEncoder.encodeDouble(value, bytes, offset);
+    }
+}
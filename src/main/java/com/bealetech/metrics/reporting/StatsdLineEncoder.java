@@ -0,0 +1,396 @@
+package com.bealetech.metrics.reporting;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Encodes StatsD lines into a reusable byte buffer without creating intermediate strings.
+ * <p>
+ * Names are UTF-8 encoded with every run of whitespace replaced by a single {@code -}. Doubles
+ * are written with two fixed decimal places like {@code String.format("%2.2f")}, though ties are
+ * rounded on the exact binary value, so {@code 1.005} (really {@code 1.00499...}) becomes
+ * {@code 1.00}, and values which round to zero are written without a sign. Values which need a
+ * relative precision, such as those of a distribution, can be written with a number of
+ * significant digits instead. Writes beyond the buffer's capacity are discarded and flagged by
+ * {@link #isOverflow()}.
+ */
+final class StatsdLineEncoder {
+    /**
+     * Doubles at or beyond this magnitude fall back to {@link String#format}, since scaling them
+     * by 100 would lose precision.
+     */
+    private static final double MAX_FIXED_POINT = 1e13;
+
+    /**
+     * The most significant digits a double is written with.
+     */
+    static final int MAX_SIGNIFICANT_DIGITS = 17;
+
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    // the most decimals written in fixed point before falling back to BigDecimal
+    private static final int MAX_DECIMALS = 18;
+    private static final long[] POWERS_OF_TEN = new long[MAX_DECIMALS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final byte[] buffer;
+    private int length;
+    private boolean overflow;
+
+    StatsdLineEncoder(int capacity) {
+        this(new byte[capacity], 0);
+    }
+
+    private StatsdLineEncoder(byte[] buffer, int offset) {
+        this.buffer = buffer;
+        this.length = offset;
+    }
+
+    /**
+     * Returns the sanitized, UTF-8 encoded form of a metric name.
+     *
+     * @param name a metric name
+     * @return the encoded name
+     */
+    static byte[] encodeName(String name) {
+        // a UTF-16 char never needs more than three bytes of UTF-8
+        final StatsdLineEncoder encoder = new StatsdLineEncoder(name.length() * 3);
+        encoder.writeName(name);
+        return Arrays.copyOf(encoder.buffer, encoder.length);
+    }
+
+    /**
+     * Writes a double with two decimal places into the given array, as {@link #writeDouble}
+     * does.
+     *
+     * @param v      the value
+     * @param bytes  an array with room for {@link #doubleLength(double)} bytes from the offset
+     * @param offset the index to write the value at
+     * @return the index after the value
+     */
+    static int encodeDouble(double v, byte[] bytes, int offset) {
+        final StatsdLineEncoder encoder = new StatsdLineEncoder(bytes, offset);
+        encoder.writeDouble(v);
+        return encoder.length;
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeDouble} writes for a double.
+     *
+     * @param v the value
+     * @return the length of its encoded form
+     */
+    static int doubleLength(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v) || Math.abs(v) >= MAX_FIXED_POINT) {
+            return String.format(Locale.US, "%2.2f", v).length();
+        }
+        final long scaled = Math.round(Math.abs(v) * 100);
+        // a units digit, the point and two decimals
+        int length = v < 0 && scaled != 0 ? 5 : 4;
+        for (long t = scaled / 100; t >= 10; t /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Discards the current line.
+     *
+     * @return {@code this}
+     */
+    StatsdLineEncoder reset() {
+        length = 0;
+        overflow = false;
+        return this;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    boolean isOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Discards everything written after the first {@code length} bytes.
+     */
+    void truncate(int length) {
+        this.length = length;
+        overflow = false;
+    }
+
+    /**
+     * Writes a complete line.
+     */
+    void line(String name, String value, Statsd.StatType statType) {
+        reset();
+        writeName(name);
+        writeByte((byte) ':');
+        writeString(value);
+        writeType(statType);
+    }
+
+    void line(String name, long value, Statsd.StatType statType) {
+        reset();
+        writeName(name);
+        writeByte((byte) ':');
+        writeLong(value);
+        writeType(statType);
+    }
+
+    void line(String name, double value, Statsd.StatType statType) {
+        reset();
+        writeName(name);
+        writeByte((byte) ':');
+        writeDouble(value);
+        writeType(statType);
+    }
+
+    void line(byte[] name, long value, Statsd.StatType statType) {
+        reset();
+        writeBytes(name);
+        writeByte((byte) ':');
+        writeLong(value);
+        writeType(statType);
+    }
+
+    void line(byte[] name, double value, Statsd.StatType statType) {
+        reset();
+        writeBytes(name);
+        writeByte((byte) ':');
+        writeDouble(value);
+        writeType(statType);
+    }
+
+    void writeByte(byte b) {
+        if (length < buffer.length) {
+            buffer[length++] = b;
+        } else {
+            overflow = true;
+        }
+    }
+
+    void writeBytes(byte[] bytes) {
+        if (length + bytes.length <= buffer.length) {
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        } else {
+            overflow = true;
+        }
+    }
+
+    /**
+     * Writes a metric name, replacing each run of whitespace with a single {@code -}.
+     */
+    void writeName(String name) {
+        boolean inWhitespace = false;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (isWhitespace(c)) {
+                if (!inWhitespace) {
+                    writeByte((byte) '-');
+                }
+                inWhitespace = true;
+            } else {
+                inWhitespace = false;
+                i = writeChar(name, i);
+            }
+        }
+    }
+
+    void writeString(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            i = writeChar(s, i);
+        }
+    }
+
+    void writeType(Statsd.StatType statType) {
+        writeByte((byte) '|');
+        writeBytes(statType.suffix);
+    }
+
+    void writeLong(long n) {
+        if (n == Long.MIN_VALUE) {
+            writeBytes(MIN_LONG);
+            return;
+        }
+        if (n < 0) {
+            writeByte((byte) '-');
+            n = -n;
+        }
+
+        int digits = 1;
+        for (long t = n; t >= 10; t /= 10) {
+            digits++;
+        }
+        if (length + digits > buffer.length) {
+            overflow = true;
+            return;
+        }
+
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + (n % 10));
+            n /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Writes a double with two decimal places, rounding half up.
+     */
+    void writeDouble(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v) || Math.abs(v) >= MAX_FIXED_POINT) {
+            writeString(String.format(Locale.US, "%2.2f", v));
+            return;
+        }
+
+        final long scaled = Math.round(Math.abs(v) * 100);
+        if (v < 0 && scaled != 0) {
+            writeByte((byte) '-');
+        }
+        writeLong(scaled / 100);
+        writeByte((byte) '.');
+        final int fraction = (int) (scaled % 100);
+        writeByte((byte) ('0' + fraction / 10));
+        writeByte((byte) ('0' + fraction % 10));
+    }
+
+    /**
+     * Writes a double rounded to the given number of significant digits, without trailing zeros,
+     * so that small values keep their relative precision: {@code 0.0123} rather than
+     * {@code 0.01}.
+     */
+    void writeSignificant(double v, int digits) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            writeString(String.format(Locale.US, "%2.2f", v));
+            return;
+        }
+        if (v == 0) {
+            writeByte((byte) '0');
+            return;
+        }
+
+        final double magnitude = Math.abs(v);
+        final int decimals = digits - 1 - (int) Math.floor(Math.log10(magnitude));
+        if (decimals > MAX_DECIMALS || magnitude >= MAX_FIXED_POINT) {
+            writeString(new BigDecimal(v).round(new MathContext(digits))
+                    .stripTrailingZeros().toPlainString());
+            return;
+        }
+
+        if (v < 0) {
+            writeByte((byte) '-');
+        }
+        if (decimals <= 0) {
+            // round away the digits before the point which are not significant
+            final long unit = POWERS_OF_TEN[-decimals];
+            writeLong(Math.round(magnitude / unit) * unit);
+            return;
+        }
+        final long unit = POWERS_OF_TEN[decimals];
+        final long scaled = Math.round(magnitude * unit);
+        writeLong(scaled / unit);
+        long fraction = scaled % unit;
+        if (fraction == 0) {
+            return;
+        }
+        int width = decimals;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            width--;
+        }
+        writeByte((byte) '.');
+        for (long t = POWERS_OF_TEN[width - 1]; t > fraction; t /= 10) {
+            writeByte((byte) '0');
+        }
+        writeLong(fraction);
+    }
+
+    /**
+     * Writes the values from {@code from} to {@code to} separated by {@code :}, as many as fit
+     * while leaving {@code reserved} bytes free, but always at least one.
+     *
+     * @return the index after the last value written
+     */
+    int writeValues(double[] values, int from, int to, int reserved) {
+        return writeValues(values, from, to, reserved, 0);
+    }
+
+    /**
+     * Writes values as {@link #writeValues(double[], int, int, int)} does, each with the given
+     * number of significant digits, or with two decimals if {@code digits} is 0.
+     *
+     * @return the index after the last value written
+     */
+    int writeValues(double[] values, int from, int to, int reserved, int digits) {
+        writeValue(values[from], digits);
+        int i = from + 1;
+        while (i < to) {
+            final int mark = length;
+            writeByte((byte) ':');
+            writeValue(values[i], digits);
+            if (overflow || length + reserved > buffer.length) {
+                truncate(mark);
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private void writeValue(double v, int digits) {
+        if (digits == 0) {
+            writeDouble(v);
+        } else {
+            writeSignificant(v, digits);
+        }
+    }
+
+    /**
+     * UTF-8 encodes the character at {@code i}, returning the index of the last char consumed.
+     */
+    private int writeChar(String s, int i) {
+        final char c = s.charAt(i);
+        if (c < 0x80) {
+            writeByte((byte) c);
+        } else if (c < 0x800) {
+            writeByte((byte) (0xc0 | (c >> 6)));
+            writeByte((byte) (0x80 | (c & 0x3f)));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            writeByte((byte) (0xf0 | (cp >> 18)));
+            writeByte((byte) (0x80 | ((cp >> 12) & 0x3f)));
+            writeByte((byte) (0x80 | ((cp >> 6) & 0x3f)));
+            writeByte((byte) (0x80 | (cp & 0x3f)));
+            return i + 1;
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            writeByte((byte) '?');
+        } else {
+            writeByte((byte) (0xe0 | (c >> 12)));
+            writeByte((byte) (0x80 | ((c >> 6) & 0x3f)));
+            writeByte((byte) (0x80 | (c & 0x3f)));
+        }
+        return i;
+    }
+
+    /**
+     * Matches the characters of the regular expression class {@code \s}.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
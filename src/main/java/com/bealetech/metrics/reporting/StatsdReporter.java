@@ -5,10 +5,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Locale;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static com.bealetech.metrics.reporting.StatAttribute.*;
 
 /**
  * A reporter which publishes metric values to a Statds server.
@@ -29,8 +52,12 @@ public class StatsdReporter extends ScheduledReporter {
 
     /**
      * A builder for {@link StatsdReporter} instances. Defaults to not using a prefix, using the
-     * default clock, converting rates to events/second, converting durations to milliseconds, and
-     * not filtering metrics.
+     * default clock, converting rates to events/second, converting durations to milliseconds,
+     * not filtering metrics, resending counter increments lost to a failed report, sending every
+     * metric in every report, sending every {@link StatAttribute} with the 50th, 75th, 95th,
+     * 98th, 99th and 99.9th percentiles rather than distributions, not tagging lines, and
+     * starting the first scheduled report one period after {@link StatsdReporter#start} without
+     * pacing datagrams.
      */
     public static class Builder {
         private final MetricRegistry registry;
@@ -38,6 +65,27 @@ public class StatsdReporter extends ScheduledReporter {
         private TimeUnit rateUnit;
         private TimeUnit durationUnit;
         private MetricFilter filter;
+        private int nameCacheSize;
+        private boolean retransmitCounters;
+        private boolean skipUnchanged;
+        private int heartbeatInterval;
+        private Set<StatAttribute> timerAttributes;
+        private Set<StatAttribute> histogramAttributes;
+        private Set<StatAttribute> meterAttributes;
+        private final Map<Pattern, Set<StatAttribute>> attributeOverrides;
+        private double[] percentiles;
+        private boolean distributions;
+        private double distributionAccuracy;
+        private Tags tags;
+        private final Map<Pattern, Tags> tagOverrides;
+        private ExecutorService executor;
+        private int parallelism;
+        private MetricRegistry selfMetrics;
+        private Clock clock;
+        private long maxPhaseNanos;
+        private double pacing;
+        private long gaugeBudgetNanos;
+        private ExecutorService gaugeExecutor;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
@@ -45,6 +93,27 @@ public class StatsdReporter extends ScheduledReporter {
             this.rateUnit = TimeUnit.SECONDS;
             this.durationUnit = TimeUnit.MILLISECONDS;
             this.filter = MetricFilter.ALL;
+            this.nameCacheSize = MetricNameCache.DEFAULT_MAX_SIZE;
+            this.retransmitCounters = true;
+            this.skipUnchanged = false;
+            this.heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+            this.timerAttributes = EnumSet.allOf(StatAttribute.class);
+            this.histogramAttributes = EnumSet.allOf(StatAttribute.class);
+            this.meterAttributes = EnumSet.allOf(StatAttribute.class);
+            this.attributeOverrides = new LinkedHashMap<Pattern, Set<StatAttribute>>();
+            this.percentiles = DEFAULT_PERCENTILES.clone();
+            this.distributions = false;
+            this.distributionAccuracy = DEFAULT_DISTRIBUTION_ACCURACY;
+            this.tags = Tags.NONE;
+            this.tagOverrides = new LinkedHashMap<Pattern, Tags>();
+            this.executor = null;
+            this.parallelism = 1;
+            this.selfMetrics = null;
+            this.clock = Clock.defaultClock();
+            this.maxPhaseNanos = 0;
+            this.pacing = 0;
+            this.gaugeBudgetNanos = 0;
+            this.gaugeExecutor = null;
         }
 
         /**
@@ -81,7 +150,8 @@ public class StatsdReporter extends ScheduledReporter {
         }
 
         /**
-         * Only report metrics which match the given filter.
+         * Only report metrics which match the given filter. A metric is matched once, when it
+         * is added to the registry, so the filter should not depend on the metric's value.
          *
          * @param filter a {@link MetricFilter}
          * @return {@code this}
@@ -91,6 +161,295 @@ public class StatsdReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * Cache the encoded names of at most the given number of metrics. Names are rebuilt for
+         * every report once the registry holds more metrics than this.
+         *
+         * @param nameCacheSize the maximum number of metrics whose names are cached
+         * @return {@code this}
+         */
+        public Builder nameCacheSize(int nameCacheSize) {
+            this.nameCacheSize = nameCacheSize;
+            return this;
+        }
+
+        /**
+         * Whether counter increments from a report which could not be sent in full are added to
+         * the next report. When disabled, the increments of a failed report are lost, but a
+         * datagram which did arrive is never counted twice.
+         *
+         * @param retransmitCounters whether to resend counter increments after a failed report
+         * @return {@code this}
+         */
+        public Builder retransmitCounters(boolean retransmitCounters) {
+            this.retransmitCounters = retransmitCounters;
+            return this;
+        }
+
+        /**
+         * Leave out timers, histograms and meters whose count has not changed, and gauges whose
+         * value has not changed, since they were last sent. Unchanged metrics are still sent
+         * every {@link #heartbeatEvery(int) heartbeat interval}.
+         *
+         * @param skipUnchanged whether to skip unchanged metrics
+         * @return {@code this}
+         */
+        public Builder skipUnchanged(boolean skipUnchanged) {
+            this.skipUnchanged = skipUnchanged;
+            return this;
+        }
+
+        /**
+         * When skipping unchanged metrics, send each metric at least once every given number of
+         * reports, so that it does not appear to be missing. Zero sends unchanged metrics only
+         * once.
+         *
+         * @param heartbeatInterval the most reports in a row an unchanged metric is skipped for
+         * @return {@code this}
+         */
+        public Builder heartbeatEvery(int heartbeatInterval) {
+            this.heartbeatInterval = heartbeatInterval;
+            return this;
+        }
+
+        /**
+         * Only send the given attributes of timers. Attributes which are not sent are never
+         * computed.
+         *
+         * @param attributes the attributes to send
+         * @return {@code this}
+         */
+        public Builder timerAttributes(Set<StatAttribute> attributes) {
+            this.timerAttributes = copyOf(attributes);
+            return this;
+        }
+
+        /**
+         * Only send the given attributes of histograms. Rates do not apply to histograms.
+         *
+         * @param attributes the attributes to send
+         * @return {@code this}
+         */
+        public Builder histogramAttributes(Set<StatAttribute> attributes) {
+            this.histogramAttributes = copyOf(attributes);
+            return this;
+        }
+
+        /**
+         * Only send the given attributes of meters. Only the count and rates apply to meters.
+         *
+         * @param attributes the attributes to send
+         * @return {@code this}
+         */
+        public Builder meterAttributes(Set<StatAttribute> attributes) {
+            this.meterAttributes = copyOf(attributes);
+            return this;
+        }
+
+        /**
+         * Send the given attributes for timers, histograms and meters whose whole name matches
+         * the given regular expression, instead of those for their type. When several
+         * expressions match, the first one given wins.
+         *
+         * @param regex      a regular expression matched against metric names
+         * @param attributes the attributes to send
+         * @return {@code this}
+         */
+        public Builder attributesFor(String regex, Set<StatAttribute> attributes) {
+            this.attributeOverrides.put(Pattern.compile(regex), copyOf(attributes));
+            return this;
+        }
+
+        /**
+         * Send the given percentiles of timers and histograms, each between 0 and 1. They are
+         * named after their percentage, so 0.9 is sent as {@code p90} and 0.999 as {@code p999}.
+         *
+         * @param percentiles the quantiles to send
+         * @return {@code this}
+         */
+        public Builder percentiles(double... percentiles) {
+            for (double percentile : percentiles) {
+                if (!(percentile >= 0 && percentile <= 1)) {
+                    throw new IllegalArgumentException(
+                            "percentiles must be between 0 and 1: " + percentile);
+                }
+            }
+            this.percentiles = percentiles.clone();
+            return this;
+        }
+
+        /**
+         * Send the snapshot of each timer and histogram as a distribution, which the server can
+         * merge across hosts, instead of its max, mean, min, standard deviation and percentiles.
+         * The distribution is sent whenever any of those attributes is selected; counts and rates
+         * are sent as before.
+         * <p>
+         * The snapshot's values are grouped into logarithmic buckets, each sent once as a value
+         * within the {@link #distributionAccuracy(double) accuracy} of every sample in it, with as
+         * many significant digits as that accuracy needs.
+         * Buckets holding the same number of samples {@code n} share multi-value lines of type
+         * {@code d}, weighted by a sample rate of {@code 1/n}:
+         * <pre>
+         * prefix.timer:0.991:9.925|d
+         * prefix.timer:5.008|d|@0.5
+         * </pre>
+         * Only servers which understand distributions and multi-value lines, such as DogStatsD,
+         * can receive these.
+         *
+         * @param distributions whether to send distributions rather than percentiles
+         * @return {@code this}
+         */
+        public Builder distributions(boolean distributions) {
+            this.distributions = distributions;
+            return this;
+        }
+
+        /**
+         * The largest relative error of the values sent for a distribution. Smaller values send
+         * more buckets.
+         *
+         * @param relativeAccuracy the accuracy, greater than 0 and less than 1
+         * @return {@code this}
+         */
+        public Builder distributionAccuracy(double relativeAccuracy) {
+            if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+                throw new IllegalArgumentException(
+                        "relative accuracy must be between 0 and 1: " + relativeAccuracy);
+            }
+            this.distributionAccuracy = relativeAccuracy;
+            return this;
+        }
+
+        /**
+         * Send the given DogStatsD-style tags, such as {@code host:web1}, with every line.
+         *
+         * @param tags the tags, each either {@code key:value} or a bare {@code key}
+         * @return {@code this}
+         * @see Tags#of(String...)
+         */
+        public Builder tags(String... tags) {
+            this.tags = Tags.of(tags);
+            return this;
+        }
+
+        /**
+         * Send the given tags, after those given to {@link #tags(String...)}, with every line of
+         * the metrics whose whole name matches the given regular expression. When several
+         * expressions match, the first one given wins.
+         *
+         * @param regex a regular expression matched against metric names
+         * @param tags  the tags, each either {@code key:value} or a bare {@code key}
+         * @return {@code this}
+         */
+        public Builder tagsFor(String regex, String... tags) {
+            this.tagOverrides.put(Pattern.compile(regex), Tags.of(tags));
+            return this;
+        }
+
+        /**
+         * Take snapshots of timers and histograms, read meter rates and encode the results on
+         * the given executor, split into the given number of tasks. Each task fills its own
+         * datagrams, which the reporting thread then sends. Small registries are still reported
+         * on the reporting thread alone. The executor is not shut down by the reporter.
+         *
+         * @param executor    the executor to run tasks on
+         * @param parallelism the number of tasks each report is split into
+         * @return {@code this}
+         */
+        public Builder reportInParallel(ExecutorService executor, int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+            }
+            this.executor = executor;
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Read a gauge on the given executor once reading it on the reporting thread takes
+         * longer than the given budget, and send its last known value while the next read is
+         * under way. The gauge is read on the reporting thread again once a read finishes within
+         * the budget. The executor is not shut down by the reporter.
+         *
+         * @param budget   the longest time a gauge may take to read on the reporting thread
+         * @param unit     the unit of {@code budget}
+         * @param executor the executor slow gauges are read on
+         * @return {@code this}
+         */
+        public Builder gaugeTimeBudget(long budget, TimeUnit unit, ExecutorService executor) {
+            if (budget <= 0) {
+                throw new IllegalArgumentException("budget must be positive: " + budget);
+            }
+            this.gaugeBudgetNanos = unit.toNanos(budget);
+            this.gaugeExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Use the given {@link Clock} to schedule reports and to time them.
+         *
+         * @param clock a {@link Clock} instance
+         * @return {@code this}
+         */
+        public Builder withClock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Delay the scheduled reports by a random time of up to the given offset, chosen once
+         * when the reporter is started. Reporters started at the same moment across a fleet of
+         * hosts then send at different moments rather than all at once.
+         *
+         * @param maxOffset the longest delay
+         * @param unit      the unit of {@code maxOffset}
+         * @return {@code this}
+         */
+        public Builder randomPhase(long maxOffset, TimeUnit unit) {
+            if (maxOffset < 0) {
+                throw new IllegalArgumentException("maxOffset must not be negative: " + maxOffset);
+            }
+            this.maxPhaseNanos = unit.toNanos(maxOffset);
+            return this;
+        }
+
+        /**
+         * Spread the datagrams of each scheduled report evenly over the given fraction of the
+         * reporting period, rather than sending them in one burst. The time between datagrams
+         * is based on the number sent by the previous report, so the first report is not paced.
+         *
+         * @param fraction the fraction of the period, greater than 0 and less than 1
+         * @return {@code this}
+         */
+        public Builder pacedSending(double fraction) {
+            if (!(fraction > 0 && fraction < 1)) {
+                throw new IllegalArgumentException(
+                        "fraction must be between 0 and 1: " + fraction);
+            }
+            this.pacing = fraction;
+            return this;
+        }
+
+        /**
+         * Record metrics about each report in the given registry, under
+         * {@link #SELF_METRICS_PREFIX}: the time taken overall and by taking snapshots, encoding
+         * and sending; the lines, bytes and datagrams sent; send failures; gauges skipped for
+         * having no value; scheduled reports skipped after an overrun; gauges over their
+         * {@link #gaugeTimeBudget(long, TimeUnit, ExecutorService) time budget}, with the read
+         * time of each under {@code slow-gauges}; and, if the transport is a {@link MetricSet},
+         * the transport's own metrics. Pass the registry being reported to
+         * send these to StatsD as well. Stopping the reporter removes only the metrics it
+         * registered; where another reporter's metrics already hold a name, this reporter's are
+         * recorded but not registered.
+         *
+         * @param selfMetrics the registry to record the reporter's metrics in
+         * @return {@code this}
+         */
+        public Builder instrumentedWith(MetricRegistry selfMetrics) {
+            this.selfMetrics = selfMetrics;
+            return this;
+        }
+
         /**
          * Builds a {@link StatsdReporter} with the given properties, sending metrics using the
          * given {@link Statsd} client.
@@ -99,19 +458,128 @@ public class StatsdReporter extends ScheduledReporter {
          * @return a {@link StatsdReporter}
          */
         public StatsdReporter build(Statsd statsd) {
-            return new StatsdReporter(registry,
-                    statsd,
-                    prefix,
-                    filter,
-                    rateUnit,
-                    durationUnit);
+            return new StatsdReporter(this, statsd);
         }
     }
 
+    /**
+     * The default number of reports an unchanged metric is skipped for, when skipping them.
+     */
+    public static final int DEFAULT_HEARTBEAT_INTERVAL = 10;
+
+    /**
+     * The prefix of the metrics a reporter records about itself.
+     */
+    public static final String SELF_METRICS_PREFIX = "statsd-reporter";
+
+    /**
+     * The default relative accuracy of the values sent for a distribution.
+     */
+    public static final double DEFAULT_DISTRIBUTION_ACCURACY = 0.01;
+
+    private static final double[] DEFAULT_PERCENTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+
+    // the fewest timers, histograms and meters worth handing to each parallel task
+    private static final int MIN_METRICS_PER_TASK = 64;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(StatsdReporter.class);
 
+    private final MetricRegistry registry;
+    private final MetricIndex index;
     private final Statsd statsd;
-    private final String prefix;
+    private final MetricNameCache names;
+    private final boolean retransmitCounters;
+    private final boolean skipUnchanged;
+    private final int heartbeatInterval;
+
+    private final Set<StatAttribute> timerAttributes;
+    private final Set<StatAttribute> histogramAttributes;
+    private final Set<StatAttribute> meterAttributes;
+    private final Map<Pattern, Set<StatAttribute>> attributeOverrides;
+    private final Map<String, Set<StatAttribute>> resolvedAttributes =
+            new HashMap<String, Set<StatAttribute>>();
+    private final double[] percentiles;
+    private final String[] percentileSuffixes;
+    private final Distribution distribution;
+    private final int distributionDigits;
+
+    // tag sets are combined once per override, so metrics share a handful of encoded instances
+    private final Tags tags;
+    private final Map<Pattern, Tags> tagOverrides;
+    private final Map<String, Tags> resolvedTags = new HashMap<String, Tags>();
+
+    private final ExecutorService executor;
+    private final Statsd[] workers;
+    private final BufferingTransport[] workerPayloads;
+
+    private final ReporterMetrics metrics;
+    private final GaugeSampler gaugeSampler;
+
+    // timers, histograms and meters collected for reporting in parallel
+    private final List<String> sampledNames = new ArrayList<String>();
+    private final List<Metric> sampledMetrics = new ArrayList<Metric>();
+    private final List<Set<StatAttribute>> sampledAttributes = new ArrayList<Set<StatAttribute>>();
+    private final List<Tags> sampledTags = new ArrayList<Tags>();
+
+    // the count last delivered for each counter, and the counts sent by the current report
+    private final ObjectLongMap<String> counterValues = new ObjectLongMap<String>();
+    private final ObjectLongMap<String> pendingCounterValues = new ObjectLongMap<String>();
+
+    // the count or gauge value each metric was last sent with, and the report it was sent in
+    private final ObjectLongMap<String> sentValues = new ObjectLongMap<String>();
+    private final ObjectLongMap<String> sentReports = new ObjectLongMap<String>();
+    private long reports;
+
+    // the reporter's own schedule, once started
+    private final Clock clock;
+    private final long maxPhaseNanos;
+    private final double pacing;
+    private final AtomicLong skippedReports = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+    private volatile long periodNanos;
+    private long nextReport;
+    private long pacedDatagrams;
+
+    private final Runnable scheduledReport = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                report();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to report to StatsD", e);
+            } finally {
+                scheduleNext();
+            }
+        }
+    };
+
+    private final Queue<String> removedMetrics = new ConcurrentLinkedQueue<String>();
+    private final MetricRegistryListener removalListener = new MetricRegistryListener.Base() {
+        @Override
+        public void onGaugeRemoved(String name) {
+            removedMetrics.offer(name);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            removedMetrics.offer(name);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            removedMetrics.offer(name);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            removedMetrics.offer(name);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            removedMetrics.offer(name);
+        }
+    };
 
     public StatsdReporter(MetricRegistry registry,
                             Statsd statsd,
@@ -119,10 +587,78 @@ public class StatsdReporter extends ScheduledReporter {
                             MetricFilter filter,
                             TimeUnit rateUnit,
                             TimeUnit durationUnit) {
-        super(registry, "statsd-reporter", filter, rateUnit, durationUnit);
+        this(forRegistry(registry)
+                .prefixedWith(prefix)
+                .filter(filter)
+                .convertRatesTo(rateUnit)
+                .convertDurationsTo(durationUnit), statsd);
+    }
+
+    private StatsdReporter(Builder builder, Statsd statsd) {
+        super(builder.registry, "statsd-reporter", builder.filter, builder.rateUnit,
+                builder.durationUnit);
 
+        this.registry = builder.registry;
         this.statsd = statsd;
-        this.prefix = prefix;
+        this.names = new MetricNameCache(builder.prefix, builder.nameCacheSize);
+        this.retransmitCounters = builder.retransmitCounters;
+        this.skipUnchanged = builder.skipUnchanged;
+        this.heartbeatInterval = builder.heartbeatInterval;
+        this.timerAttributes = builder.timerAttributes;
+        this.histogramAttributes = builder.histogramAttributes;
+        this.meterAttributes = builder.meterAttributes;
+        this.attributeOverrides =
+                new LinkedHashMap<Pattern, Set<StatAttribute>>(builder.attributeOverrides);
+        this.percentiles = builder.percentiles;
+        this.percentileSuffixes = new String[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            percentileSuffixes[i] = "p" + BigDecimal.valueOf(percentiles[i]).movePointRight(2)
+                    .stripTrailingZeros().toPlainString().replace(".", "");
+        }
+        // most of the accuracy goes to bucketing, and the rest to rounding the values sent
+        this.distribution = builder.distributions ?
+                new Distribution(builder.distributionAccuracy * 0.9) : null;
+        this.distributionDigits =
+                Distribution.significantDigits(builder.distributionAccuracy * 0.05);
+        this.tags = builder.tags;
+        this.tagOverrides = new LinkedHashMap<Pattern, Tags>();
+        for (Map.Entry<Pattern, Tags> override : builder.tagOverrides.entrySet()) {
+            tagOverrides.put(override.getKey(), tags.and(override.getValue()));
+        }
+
+        this.executor = builder.executor;
+        this.workers = new Statsd[executor == null ? 0 : builder.parallelism];
+        this.workerPayloads = new BufferingTransport[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            workerPayloads[i] = new BufferingTransport(statsd.getMaxPayloadSize());
+            workers[i] = new Statsd(workerPayloads[i], statsd.getMaxPayloadSize());
+        }
+        this.metrics = builder.selfMetrics == null ? null :
+                new ReporterMetrics(builder.selfMetrics, SELF_METRICS_PREFIX, statsd, workers);
+        this.gaugeSampler = builder.gaugeExecutor == null ? null :
+                new GaugeSampler(builder.gaugeBudgetNanos, TimeUnit.NANOSECONDS,
+                        builder.gaugeExecutor, metrics);
+
+        this.index = new MetricIndex(builder.filter);
+        this.clock = builder.clock;
+        this.maxPhaseNanos = builder.maxPhaseNanos;
+        this.pacing = builder.pacing;
+
+        registry.addListener(names);
+        registry.addListener(removalListener);
+        registry.addListener(index);
+    }
+
+    /**
+     * Reports the registry's metrics which pass the filter. Rather than building sorted maps of
+     * the whole registry, this walks an index kept up to date as metrics are added and removed,
+     * so the filter is only applied when a metric is added. Metrics are sent in the order they
+     * were added.
+     */
+    @Override
+    public void report() {
+        index.update();
+        report(index.gauges, index.counters, index.histograms, index.meters, index.timers);
     }
 
     @Override
@@ -131,171 +667,671 @@ public class StatsdReporter extends ScheduledReporter {
                        SortedMap<String, Histogram> histograms,
                        SortedMap<String, Meter> meters,
                        SortedMap<String, Timer> timers) {
+        report(MetricIndex.Entries.of(gauges),
+                MetricIndex.Entries.of(counters),
+                MetricIndex.Entries.of(histograms),
+                MetricIndex.Entries.of(meters),
+                MetricIndex.Entries.of(timers));
+    }
+
+    private void report(MetricIndex.Entries<Gauge> gauges,
+                        MetricIndex.Entries<Counter> counters,
+                        MetricIndex.Entries<Histogram> histograms,
+                        MetricIndex.Entries<Meter> meters,
+                        MetricIndex.Entries<Timer> timers) {
+        String removed;
+        while ((removed = removedMetrics.poll()) != null) {
+            counterValues.remove(removed);
+            sentValues.remove(removed);
+            sentReports.remove(removed);
+            resolvedAttributes.remove(removed);
+            resolvedTags.remove(removed);
+            if (gaugeSampler != null) {
+                gaugeSampler.remove(removed);
+            }
+        }
+        reports++;
 
+        if (metrics != null) {
+            metrics.begin();
+        }
+        final boolean paced = pacing > 0 && periodNanos > 0;
+        final long datagramsBefore = paced ? statsd.getPacketsSent() : 0;
+        if (paced) {
+            statsd.pace(pacedDatagrams == 0 ? 0 : (long) (periodNanos * pacing) / pacedDatagrams);
+        }
+        boolean delivered = false;
         try {
             statsd.connect();
 
-            for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-                reportGauge(entry.getKey(), entry.getValue());
+            for (int i = 0; i < gauges.size(); i++) {
+                final String name = gauges.name(i);
+                reportGauge(name, gauges.metric(i), tags(name));
             }
 
-            for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-                reportCounter(entry.getKey(), entry.getValue());
+            for (int i = 0; i < counters.size(); i++) {
+                final String name = counters.name(i);
+                reportCounter(name, counters.metric(i), tags(name));
             }
 
-            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-                reportHistogram(entry.getKey(), entry.getValue());
+            for (int i = 0; i < histograms.size(); i++) {
+                final String name = histograms.name(i);
+                final Histogram histogram = histograms.metric(i);
+                if (changed(name, histogram.getCount())) {
+                    reportSampled(name, histogram, attributes(name, histogramAttributes),
+                            tags(name));
+                }
             }
 
-            for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-                reportMetered(entry.getKey(), entry.getValue());
+            for (int i = 0; i < meters.size(); i++) {
+                final String name = meters.name(i);
+                final Meter meter = meters.metric(i);
+                if (changed(name, meter.getCount())) {
+                    reportSampled(name, meter, attributes(name, meterAttributes), tags(name));
+                }
             }
 
-            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-                reportTimer(entry.getKey(), entry.getValue());
+            for (int i = 0; i < timers.size(); i++) {
+                final String name = timers.name(i);
+                final Timer timer = timers.metric(i);
+                if (changed(name, timer.getCount())) {
+                    reportSampled(name, timer, attributes(name, timerAttributes), tags(name));
+                }
             }
 
+            if (!sampledNames.isEmpty()) {
+                reportInParallel();
+            }
+
+            delivered = true;
         } catch(IOException e) {
             LOGGER.warn("Unable to report to StatsD", statsd, e);
         } finally {
             try {
                 statsd.close();
             } catch (IOException e) {
+                delivered = false;
                 LOGGER.debug("Error disconnecting from StatsD server", statsd, e);
             }
+
+            if (delivered || !retransmitCounters) {
+                counterValues.putAll(pendingCounterValues);
+            }
+            pendingCounterValues.clear();
+            sampledNames.clear();
+            sampledMetrics.clear();
+            sampledAttributes.clear();
+            sampledTags.clear();
+
+            if (!delivered) {
+                // whatever was skipped as unchanged may never have arrived, so send it all again
+                sentValues.clear();
+                sentReports.clear();
+            }
+
+            if (paced) {
+                pacedDatagrams = statsd.getPacketsSent() - datagramsBefore;
+            }
+            if (metrics != null) {
+                metrics.end();
+            }
+        }
+    }
+
+    /**
+     * Starts reporting every {@code period}, first after one period and any
+     * {@link Builder#randomPhase(long, TimeUnit) random phase} offset. When a report takes
+     * longer than a period, the reports it overran are skipped rather than run back to back,
+     * and the next report covers the whole time since the last one.
+     *
+     * @param period the time between reports
+     * @param unit   the unit of {@code period}
+     * @throws IllegalStateException if the reporter was already started
+     */
+    @Override
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Already started");
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        periodNanos = unit.toNanos(period);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "statsd-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long phase = (long) (Math.random() * maxPhaseNanos);
+        nextReport = clock.getTick() + periodNanos + phase;
+        schedule();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            stopScheduler();
+            super.stop();
+        } finally {
+            registry.removeListener(names);
+            registry.removeListener(removalListener);
+            registry.removeListener(index);
+            if (metrics != null) {
+                metrics.remove();
+            }
+            statsd.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of scheduled reports skipped because an earlier report overran them.
+     *
+     * @return the number of reports skipped
+     */
+    public long getSkippedReports() {
+        return skippedReports.get();
+    }
+
+    private void schedule() {
+        try {
+            scheduler.schedule(scheduledReport, nextReport - clock.getTick(),
+                    TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // the reporter was stopped
+        }
+    }
+
+    private void scheduleNext() {
+        nextReport += periodNanos;
+        final long late = clock.getTick() - nextReport;
+        // a report due right now is on time; skip those whose time has already passed
+        if (late > 0) {
+            final long skipped = (late - 1) / periodNanos + 1;
+            nextReport += skipped * periodNanos;
+            skippedReports.addAndGet(skipped);
+            if (metrics != null) {
+                metrics.skipped(skipped);
+            }
+        }
+        schedule();
+    }
+
+    private synchronized void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reports a timer, histogram or meter right away, or collects it to be reported in parallel.
+     */
+    private void reportSampled(String name,
+                               Metric metric,
+                               Set<StatAttribute> attributes,
+                               Tags tags) throws IOException {
+        if (executor == null) {
+            reportSampled(statsd, name, metric, attributes, tags);
+        } else {
+            sampledNames.add(name);
+            sampledMetrics.add(metric);
+            sampledAttributes.add(attributes);
+            sampledTags.add(tags);
+        }
+    }
+
+    private void reportSampled(Statsd statsd,
+                               String name,
+                               Metric metric,
+                               Set<StatAttribute> attributes,
+                               Tags tags) throws IOException {
+        if (metric instanceof Timer) {
+            reportTimer(statsd, name, (Timer) metric, attributes, tags);
+        } else if (metric instanceof Histogram) {
+            reportHistogram(statsd, name, (Histogram) metric, attributes, tags);
+        } else if (metric instanceof Metered) {
+            reportMetered(statsd, name, (Metered) metric, attributes, tags);
+        }
+    }
+
+    /**
+     * Reports the collected timers, histograms and meters in contiguous slices on the executor,
+     * each slice encoded into its own worker's datagrams, then sends those datagrams. A slice's
+     * failure is rethrown once the other slices' datagrams are sent, so that the report is not
+     * taken as delivered, as it would not be had the metrics been reported one by one. An
+     * interrupted report stops its slices early and sends nothing, but still waits for them to
+     * stop before failing.
+     */
+    private void reportInParallel() throws IOException {
+        final int count = sampledNames.size();
+        final int tasks = Math.min(workers.length, Math.max(1, count / MIN_METRICS_PER_TASK));
+        if (tasks == 1) {
+            for (int i = 0; i < count; i++) {
+                reportSampled(statsd, sampledNames.get(i), sampledMetrics.get(i),
+                        sampledAttributes.get(i), sampledTags.get(i));
+            }
+            return;
+        }
+
+        // set once the report is interrupted, so that the slices stop early
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        final List<Callable<Void>> slices = new ArrayList<Callable<Void>>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            final Statsd worker = workers[t];
+            final int from = (int) ((long) count * t / tasks);
+            final int to = (int) ((long) count * (t + 1) / tasks);
+            slices.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    worker.connect();
+                    try {
+                        for (int i = from; i < to && !abandoned.get(); i++) {
+                            reportSampled(worker, sampledNames.get(i), sampledMetrics.get(i),
+                                    sampledAttributes.get(i), sampledTags.get(i));
+                        }
+                    } finally {
+                        worker.close();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        // the first slice to fail, which fails the report as a serial report would have
+        Throwable failure = null;
+        final List<Future<Void>> results = new ArrayList<Future<Void>>(tasks);
+        try {
+            for (Callable<Void> slice : slices) {
+                results.add(executor.submit(slice));
+            }
+        } catch (RejectedExecutionException e) {
+            abandoned.set(true);
+            failure = e;
+        }
+
+        // every slice is waited for, even once interrupted, since the next report reuses their
+        // workers and payloads
+        boolean interrupted = false;
+        for (Future<Void> result : results) {
+            while (true) {
+                try {
+                    result.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    abandoned.set(true);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException("Interrupted while reporting in parallel");
+        }
+
+        try {
+            // the slices of an interrupted report stopped part way through
+            if (!interrupted) {
+                for (int t = 0; t < tasks; t++) {
+                    final BufferingTransport payloads = workerPayloads[t];
+                    for (int i = 0; i < payloads.size(); i++) {
+                        statsd.sendPayload(payloads.payload(i));
+                    }
+                }
+            }
+        } finally {
+            for (int t = 0; t < tasks; t++) {
+                workerPayloads[t].clear();
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    private void reportTimer(Statsd statsd,
+                             String name,
+                             Timer timer,
+                             Set<StatAttribute> attributes,
+                             Tags tags) throws IOException {
+        if (distribution != null && needsSnapshot(attributes)) {
+            reportDistribution(statsd, name, snapshot(timer), true, tags);
+        } else if (needsSnapshot(attributes)) {
+            final Snapshot snapshot = snapshot(timer);
+
+            if (attributes.contains(MAX)) {
+                send(statsd, names.get(name, MAX.suffix),
+                        convertDuration(snapshot.getMax()),
+                        Statsd.StatType.TIMER, tags);
+            }
+            if (attributes.contains(MEAN)) {
+                send(statsd, names.get(name, MEAN.suffix),
+                        convertDuration(snapshot.getMean()),
+                        Statsd.StatType.TIMER, tags);
+            }
+            if (attributes.contains(MIN)) {
+                send(statsd, names.get(name, MIN.suffix),
+                        convertDuration(snapshot.getMin()),
+                        Statsd.StatType.TIMER, tags);
+            }
+            if (attributes.contains(STDDEV)) {
+                send(statsd, names.get(name, STDDEV.suffix),
+                        convertDuration(snapshot.getStdDev()),
+                        Statsd.StatType.TIMER, tags);
+            }
+            if (attributes.contains(PERCENTILES)) {
+                for (int i = 0; i < percentiles.length; i++) {
+                    send(statsd, names.get(name, percentileSuffixes[i]),
+                            convertDuration(snapshot.getValue(percentiles[i])),
+                            Statsd.StatType.TIMER, tags);
+                }
+            }
+        }
+
+        reportMetered(statsd, name, timer, attributes, tags);
+    }
+
+    private void reportMetered(Statsd statsd,
+                               String name,
+                               Metered meter,
+                               Set<StatAttribute> attributes,
+                               Tags tags) throws IOException {
+        if (attributes.contains(COUNT)) {
+            send(statsd, names.get(name, COUNT.suffix), meter.getCount(), Statsd.StatType.GAUGE,
+                    tags);
+        }
+        if (attributes.contains(M1_RATE)) {
+            send(statsd, names.get(name, M1_RATE.suffix),
+                    convertRate(meter.getOneMinuteRate()),
+                    Statsd.StatType.TIMER, tags);
+        }
+        if (attributes.contains(M5_RATE)) {
+            send(statsd, names.get(name, M5_RATE.suffix),
+                    convertRate(meter.getFiveMinuteRate()),
+                    Statsd.StatType.TIMER, tags);
+        }
+        if (attributes.contains(M15_RATE)) {
+            send(statsd, names.get(name, M15_RATE.suffix),
+                    convertRate(meter.getFifteenMinuteRate()),
+                    Statsd.StatType.TIMER, tags);
+        }
+        if (attributes.contains(MEAN_RATE)) {
+            send(statsd, names.get(name, MEAN_RATE.suffix),
+                    convertRate(meter.getMeanRate()),
+                    Statsd.StatType.TIMER, tags);
+        }
+    }
+
+    private void reportHistogram(Statsd statsd,
+                                 String name,
+                                 Histogram histogram,
+                                 Set<StatAttribute> attributes,
+                                 Tags tags) throws IOException {
+        if (attributes.contains(COUNT)) {
+            send(statsd, names.get(name, COUNT.suffix),
+                    histogram.getCount(),
+                    Statsd.StatType.GAUGE, tags);
+        }
+
+        if (!needsSnapshot(attributes)) {
+            return;
+        }
+        final Snapshot snapshot = snapshot(histogram);
+        if (distribution != null) {
+            reportDistribution(statsd, name, snapshot, false, tags);
+            return;
+        }
+        if (attributes.contains(MAX)) {
+            send(statsd, names.get(name, MAX.suffix),
+                    snapshot.getMax(),
+                    Statsd.StatType.TIMER, tags);
+        }
+        if (attributes.contains(MEAN)) {
+            send(statsd, names.get(name, MEAN.suffix),
+                    snapshot.getMean(),
+                    Statsd.StatType.TIMER, tags);
+        }
+        if (attributes.contains(MIN)) {
+            send(statsd, names.get(name, MIN.suffix),
+                    snapshot.getMin(),
+                    Statsd.StatType.TIMER, tags);
+        }
+        if (attributes.contains(STDDEV)) {
+            send(statsd, names.get(name, STDDEV.suffix),
+                    snapshot.getStdDev(),
+                    Statsd.StatType.TIMER, tags);
+        }
+        if (attributes.contains(PERCENTILES)) {
+            for (int i = 0; i < percentiles.length; i++) {
+                send(statsd, names.get(name, percentileSuffixes[i]),
+                        snapshot.getValue(percentiles[i]),
+                        Statsd.StatType.TIMER, tags);
+            }
+        }
+    }
+
+    /**
+     * Sends a snapshot as a bucketed distribution. Buckets with equal numbers of samples are sent
+     * together, weighted by a sample rate, so that the server counts each value as many times as
+     * its bucket was hit.
+     */
+    private void reportDistribution(Statsd statsd,
+                                    String name,
+                                    Snapshot snapshot,
+                                    boolean durations,
+                                    Tags tags) throws IOException {
+        // getValues returns a copy, which is ours to sort
+        final long[] sorted = snapshot.getValues();
+        Arrays.sort(sorted);
+        final double[] values = new double[sorted.length];
+        final int[] counts = new int[sorted.length];
+        final int buckets = distribution.bucket(sorted, values, counts);
+        if (durations) {
+            for (int i = 0; i < buckets; i++) {
+                values[i] = convertDuration(values[i]);
+            }
+        }
+
+        final byte[] encodedName = names.get(name);
+        final double[] weighted = new double[buckets];
+        int sent = 0;
+        int weight = 0;
+        while (sent < buckets) {
+            // the next larger number of samples held by any bucket
+            int next = Integer.MAX_VALUE;
+            for (int i = 0; i < buckets; i++) {
+                if (counts[i] > weight && counts[i] < next) {
+                    next = counts[i];
+                }
+            }
+            weight = next;
+
+            int length = 0;
+            for (int i = 0; i < buckets; i++) {
+                if (counts[i] == weight) {
+                    weighted[length++] = values[i];
+                }
+            }
+            statsd.send(encodedName, weighted, 0, length, distributionDigits,
+                    Statsd.StatType.DISTRIBUTION, SampleRate.ofWeight(weight), tags);
+            sent += length;
         }
     }
 
-    private void reportTimer(String name, Timer timer) throws IOException {
-        final Snapshot snapshot = timer.getSnapshot();
-
-        statsd.send(prefix(name, "max"),
-                format(convertDuration(snapshot.getMax())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "mean"),
-                format(convertDuration(snapshot.getMean())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "min"),
-                format(convertDuration(snapshot.getMin())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "stddev"),
-                format(convertDuration(snapshot.getStdDev())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p50"),
-                format(convertDuration(snapshot.getMedian())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p75"),
-                format(convertDuration(snapshot.get75thPercentile())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p95"),
-                format(convertDuration(snapshot.get95thPercentile())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p98"),
-                format(convertDuration(snapshot.get98thPercentile())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p99"),
-                format(convertDuration(snapshot.get99thPercentile())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p999"),
-                format(convertDuration(snapshot.get999thPercentile())),
-                Statsd.StatType.TIMER);
-
-        reportMetered(name, timer);
+    /**
+     * Sends the change in a counter since the last report which was delivered, since StatsD adds
+     * every counter value it receives to its total for the interval.
+     */
+    private void reportCounter(String name, Counter counter, Tags tags) throws IOException {
+        final long count = counter.getCount();
+        final long delta = count - counterValues.get(name, 0);
+        if (delta != 0) {
+            send(statsd, names.get(name, COUNT.suffix), delta, Statsd.StatType.COUNTER, tags);
+            pendingCounterValues.put(name, count);
+        }
     }
 
-    private void reportMetered(String name, Metered meter) throws IOException {
-        statsd.send(prefix(name, "count"), format(meter.getCount()), Statsd.StatType.GAUGE);
-        statsd.send(prefix(name, "m1_rate"),
-                format(convertRate(meter.getOneMinuteRate())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "m5_rate"),
-                format(convertRate(meter.getFiveMinuteRate())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "m15_rate"),
-                format(convertRate(meter.getFifteenMinuteRate())),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "mean_rate"),
-                format(convertRate(meter.getMeanRate())),
-                Statsd.StatType.TIMER);
+    private void reportGauge(String name, Gauge gauge, Tags tags) throws IOException {
+        final Object value;
+        if (metrics == null) {
+            value = read(name, gauge);
+        } else {
+            final long start = clock.getTick();
+            value = read(name, gauge);
+            metrics.snapshotTaken(clock.getTick() - start);
+            if (value == null) {
+                metrics.nullGauge();
+            }
+        }
+
+        if (value instanceof Float || value instanceof Double) {
+            final double doubleValue = ((Number) value).doubleValue();
+            if (changed(name, Double.doubleToLongBits(doubleValue))) {
+                send(statsd, names.get(name), doubleValue, Statsd.StatType.GAUGE, tags);
+            }
+        } else if (value instanceof Byte || value instanceof Short ||
+                value instanceof Integer || value instanceof Long) {
+            final long longValue = ((Number) value).longValue();
+            if (changed(name, longValue)) {
+                send(statsd, names.get(name), longValue, Statsd.StatType.GAUGE, tags);
+            }
+        }
     }
 
-    private void reportHistogram(String name, Histogram histogram) throws IOException {
-        final Snapshot snapshot = histogram.getSnapshot();
-        statsd.send(prefix(name, "count"),
-                format(histogram.getCount()),
-                Statsd.StatType.GAUGE);
-        statsd.send(prefix(name, "max"),
-                format(snapshot.getMax()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "mean"),
-                format(snapshot.getMean()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "min"),
-                format(snapshot.getMin()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "stddev"),
-                format(snapshot.getStdDev()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p50"),
-                format(snapshot.getMedian()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p75"),
-                format(snapshot.get75thPercentile()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p95"),
-                format(snapshot.get95thPercentile()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p98"),
-                format(snapshot.get98thPercentile()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p99"),
-                format(snapshot.get99thPercentile()),
-                Statsd.StatType.TIMER);
-        statsd.send(prefix(name, "p999"),
-                format(snapshot.get999thPercentile()),
-                Statsd.StatType.TIMER);
+    private Object read(String name, Gauge gauge) {
+        return gaugeSampler == null ? gauge.getValue() : gaugeSampler.read(name, gauge);
     }
 
-    private void reportCounter(String name, Counter counter) throws IOException {
-        statsd.send(prefix(name, "count"),
-                format(counter.getCount()),
-                Statsd.StatType.COUNTER);
+    /**
+     * Sends a line, without the tag extension when there are no tags to send.
+     */
+    private static void send(Statsd statsd,
+                             byte[] name,
+                             long value,
+                             Statsd.StatType statType,
+                             Tags tags) throws IOException {
+        if (tags.isEmpty()) {
+            statsd.send(name, value, statType);
+        } else {
+            statsd.send(name, value, statType, tags);
+        }
     }
 
-    private void reportGauge(String name, Gauge gauge) throws IOException {
-        final String value = format(gauge.getValue());
-        if (value != null) {
-            statsd.send(prefix(name), value,
-                    Statsd.StatType.GAUGE);
+    private static void send(Statsd statsd,
+                             byte[] name,
+                             double value,
+                             Statsd.StatType statType,
+                             Tags tags) throws IOException {
+        if (tags.isEmpty()) {
+            statsd.send(name, value, statType);
+        } else {
+            statsd.send(name, value, statType, tags);
         }
     }
 
-    private String format(Object o) {
-        if (o instanceof Float) {
-            return format(((Float) o).doubleValue());
-        } else if (o instanceof Double) {
-            return format(((Double) o).doubleValue());
-        } else if (o instanceof Byte) {
-            return format(((Byte) o).longValue());
-        } else if (o instanceof Short) {
-            return format(((Short) o).longValue());
-        } else if (o instanceof Integer) {
-            return format(((Integer) o).longValue());
-        } else if (o instanceof Long) {
-            return format(((Long) o).longValue());
-        }
-        return null;
+    private Snapshot snapshot(Sampling sampling) {
+        if (metrics == null) {
+            return sampling.getSnapshot();
+        }
+
+        final long start = clock.getTick();
+        try {
+            return sampling.getSnapshot();
+        } finally {
+            metrics.snapshotTaken(clock.getTick() - start);
+        }
     }
 
-    private String prefix(String... components) {
-        return MetricRegistry.name(prefix, components);
+    /**
+     * Returns the attributes to send for the given metric: those of the first override whose
+     * pattern matches its name, or else the given defaults for its type.
+     */
+    private Set<StatAttribute> attributes(String name, Set<StatAttribute> defaults) {
+        if (attributeOverrides.isEmpty()) {
+            return defaults;
+        }
+
+        Set<StatAttribute> attributes = resolvedAttributes.get(name);
+        if (attributes == null) {
+            attributes = defaults;
+            for (Map.Entry<Pattern, Set<StatAttribute>> override : attributeOverrides.entrySet()) {
+                if (override.getKey().matcher(name).matches()) {
+                    attributes = override.getValue();
+                    break;
+                }
+            }
+            resolvedAttributes.put(name, attributes);
+        }
+        return attributes;
     }
 
-    private String format(long n) {
-        return Long.toString(n);
+    /**
+     * Returns the tags to send for the given metric: those of the first override whose pattern
+     * matches its name, or else the global tags.
+     */
+    private Tags tags(String name) {
+        if (tagOverrides.isEmpty()) {
+            return tags;
+        }
+
+        Tags resolved = resolvedTags.get(name);
+        if (resolved == null) {
+            resolved = tags;
+            for (Map.Entry<Pattern, Tags> override : tagOverrides.entrySet()) {
+                if (override.getKey().matcher(name).matches()) {
+                    resolved = override.getValue();
+                    break;
+                }
+            }
+            resolvedTags.put(name, resolved);
+        }
+        return resolved;
+    }
+
+    private boolean needsSnapshot(Set<StatAttribute> attributes) {
+        return attributes.contains(MAX) || attributes.contains(MEAN) ||
+                attributes.contains(MIN) || attributes.contains(STDDEV) ||
+                (attributes.contains(PERCENTILES) && percentiles.length > 0);
+    }
+
+    private static Set<StatAttribute> copyOf(Set<StatAttribute> attributes) {
+        final Set<StatAttribute> copy = EnumSet.noneOf(StatAttribute.class);
+        copy.addAll(attributes);
+        return copy;
     }
 
-    private String format(double v) {
-        return String.format(Locale.US, "%2.2f", v);
+    /**
+     * Returns whether a metric, whose state is summarised by the given value, should be sent in
+     * this report. Always true unless unchanged metrics are skipped.
+     */
+    private boolean changed(String name, long value) {
+        if (!skipUnchanged) {
+            return true;
+        }
+
+        final long sentReport = sentReports.get(name, -1);
+        if (sentReport >= 0 && sentValues.get(name, 0) == value &&
+                (heartbeatInterval <= 0 || reports - sentReport < heartbeatInterval)) {
+            return false;
+        }
+        sentValues.put(name, value);
+        sentReports.put(name, reports);
+        return true;
     }
 }
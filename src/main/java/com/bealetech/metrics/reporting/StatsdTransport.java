@@ -0,0 +1,40 @@
+package com.bealetech.metrics.reporting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries encoded payloads from a {@link Statsd} client to a StatsD server.
+ * <p>
+ * {@link #connect()} and {@link #disconnect()} bracket every report; {@link #close()} releases
+ * whatever the transport holds across reports.
+ */
+public interface StatsdTransport extends Closeable {
+
+    /**
+     * Prepares the transport for a report.
+     *
+     * @throws IOException if the transport cannot reach the server
+     */
+    void connect() throws IOException;
+
+    /**
+     * Sends the bytes between the payload's position and limit as one datagram.
+     *
+     * @param payload the encoded lines
+     * @throws IOException if the payload could not be sent
+     */
+    void send(ByteBuffer payload) throws IOException;
+
+    /**
+     * Ends a report. Persistent transports keep their resources open.
+     */
+    void disconnect();
+
+    /**
+     * Releases all resources held by the transport.
+     */
+    @Override
+    void close();
+}
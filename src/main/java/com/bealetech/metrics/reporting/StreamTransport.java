@@ -0,0 +1,254 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link StatsdTransport} which writes newline terminated lines to a persistent stream
+ * connection, such as TCP or a Unix domain socket.
+ * <p>
+ * Payloads are gathered in a write-behind buffer and written when it fills and at the end of each
+ * batch, so a report costs a few large writes rather than one per datagram. When the connection
+ * fails it is closed, and reconnecting is not attempted again until a backoff has passed. The
+ * backoff doubles after every failure up to a maximum, and resets once a connection succeeds.
+ * Lines buffered when a write fails are lost.
+ * <p>
+ * Writes block until the kernel accepts the data; wrap the transport in an
+ * {@link AsyncTransport} to keep them off the reporting thread. Not thread-safe.
+ * <p>
+ * The transport is also a {@link MetricSet}, exposing the number of connections opened, failed
+ * connection attempts and failed writes.
+ */
+public abstract class StreamTransport implements StatsdTransport, MetricSet {
+
+    /**
+     * The default size of the write-behind buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The default time waited before reconnecting after the first failure.
+     */
+    public static final long DEFAULT_MIN_BACKOFF_MILLIS = 100;
+
+    /**
+     * The default longest time waited before reconnecting.
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamTransport.class);
+
+    private final ByteBuffer buffer;
+    private final long minBackoffNanos;
+    private final long maxBackoffNanos;
+
+    private SocketChannel channel;
+    private long backoffNanos;
+    private long retryAt;
+    private boolean backingOff;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+
+    /**
+     * @param bufferSize the size of the write-behind buffer, in bytes
+     * @param minBackoff the time waited before reconnecting after the first failure
+     * @param maxBackoff the longest time waited before reconnecting
+     * @param unit       the unit of {@code minBackoff} and {@code maxBackoff}
+     */
+    protected StreamTransport(int bufferSize, long minBackoff, long maxBackoff, TimeUnit unit) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.minBackoffNanos = unit.toNanos(minBackoff);
+        this.maxBackoffNanos = Math.max(minBackoffNanos, unit.toNanos(maxBackoff));
+        this.backoffNanos = minBackoffNanos;
+    }
+
+    /**
+     * Opens a new blocking connection to the server.
+     *
+     * @return the connected channel
+     * @throws IOException if the server cannot be reached
+     */
+    protected abstract SocketChannel open() throws IOException;
+
+    /**
+     * Opens the connection if it is not already open.
+     *
+     * @throws IOException if the server cannot be reached, or an earlier failure's backoff has
+     *                     not yet passed
+     */
+    @Override
+    public void connect() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        if (backingOff && System.nanoTime() - retryAt < 0) {
+            throw new IOException("Not reconnecting to " + this + " for another " +
+                    TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()) + " ms");
+        }
+
+        try {
+            channel = open();
+        } catch (IOException e) {
+            connectFailures.incrementAndGet();
+            backOff();
+            throw e;
+        }
+        connects.incrementAndGet();
+        backingOff = false;
+        backoffNanos = minBackoffNanos;
+    }
+
+    @Override
+    public void send(ByteBuffer payload) throws IOException {
+        if (channel == null) {
+            throw new IOException("Not connected to " + this);
+        }
+
+        final int needed = payload.remaining() + 1;
+        if (buffer.remaining() < needed) {
+            flush();
+        }
+        if (buffer.remaining() < needed) {
+            // larger than the whole buffer, so write it straight through
+            write(payload);
+            write(ByteBuffer.wrap(new byte[] {'\n'}));
+            return;
+        }
+        buffer.put(payload);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Writes the buffered lines. The connection is kept open between reports.
+     */
+    @Override
+    public void disconnect() {
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to send to StatsD server {}", this, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            disconnect();
+        }
+        closeChannel();
+        buffer.clear();
+    }
+
+    /**
+     * Returns the number of connections opened.
+     *
+     * @return the number of successful connection attempts
+     */
+    public long getConnects() {
+        return connects.get();
+    }
+
+    /**
+     * Returns the number of failed connection attempts.
+     *
+     * @return the number of failed connection attempts
+     */
+    public long getConnectFailures() {
+        return connectFailures.get();
+    }
+
+    /**
+     * Returns the number of writes which failed, each closing the connection.
+     *
+     * @return the number of failed writes
+     */
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+        metrics.put("connects", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getConnects();
+            }
+        });
+        metrics.put("connect-failures", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getConnectFailures();
+            }
+        });
+        metrics.put("send-failures", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getSendFailures();
+            }
+        });
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    private void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            write(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        if (channel == null) {
+            throw new IOException("Not connected to " + this);
+        }
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            sendFailures.incrementAndGet();
+            closeChannel();
+            backOff();
+            throw e;
+        }
+    }
+
+    private void backOff() {
+        retryAt = System.nanoTime() + backoffNanos;
+        backingOff = true;
+        backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error closing connection to {}", this, e);
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.bealetech.metrics.reporting;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of DogStatsD-style tags, such as {@code host:web1} or {@code canary}, sent
+ * after a line's type as {@code |#host:web1,canary}.
+ * <p>
+ * The tags are sanitized and UTF-8 encoded once, when the set is created, so sending them only
+ * copies bytes. Create tag sets up front and reuse them rather than building one per line.
+ */
+public final class Tags {
+    /**
+     * No tags at all.
+     */
+    public static final Tags NONE = new Tags(new String[0]);
+
+    private final String[] tags;
+    final byte[] encoded;
+
+    private Tags(String[] tags) {
+        this.tags = tags;
+        this.encoded = encode(tags);
+    }
+
+    /**
+     * Returns a set of the given tags, each either {@code key:value} or a bare {@code key}.
+     * Whitespace is replaced as it is in names, and repeated tags are sent once.
+     *
+     * @param tags the tags
+     * @return the tag set
+     * @throws IllegalArgumentException if a tag is empty or contains {@code |}, {@code ,} or
+     *                                  {@code #}
+     */
+    public static Tags of(String... tags) {
+        if (tags.length == 0) {
+            return NONE;
+        }
+        final Set<String> unique = new LinkedHashSet<String>();
+        for (String tag : tags) {
+            if (tag == null || tag.length() == 0) {
+                throw new IllegalArgumentException("tags must not be empty");
+            }
+            if (tag.indexOf('|') >= 0 || tag.indexOf(',') >= 0 || tag.indexOf('#') >= 0) {
+                throw new IllegalArgumentException("tags must not contain '|', ',' or '#': " + tag);
+            }
+            unique.add(tag);
+        }
+        return new Tags(unique.toArray(new String[unique.size()]));
+    }
+
+    /**
+     * Returns a set of these tags followed by the given ones.
+     *
+     * @param other more tags
+     * @return the combined tag set, which is {@code this} if {@code other} adds nothing
+     */
+    public Tags and(Tags other) {
+        if (other.tags.length == 0) {
+            return this;
+        }
+        if (tags.length == 0) {
+            return other;
+        }
+        final String[] combined = Arrays.copyOf(tags, tags.length + other.tags.length);
+        System.arraycopy(other.tags, 0, combined, tags.length, other.tags.length);
+        return of(combined);
+    }
+
+    public boolean isEmpty() {
+        return tags.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(tags);
+    }
+
+    private static byte[] encode(String[] tags) {
+        if (tags.length == 0) {
+            return new byte[0];
+        }
+        final StringBuilder line = new StringBuilder("|#");
+        for (int i = 0; i < tags.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(tags[i]);
+        }
+        return StatsdLineEncoder.encodeName(line.toString());
+    }
+}
@@ -0,0 +1,73 @@
+package com.bealetech.metrics.reporting;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link StreamTransport} which sends newline terminated lines over a persistent TCP
+ * connection, for StatsD servers listening on TCP. Unlike UDP, lines are not silently dropped
+ * when the server or the kernel falls behind.
+ * <p>
+ * The server's address is looked up again every time the transport reconnects.
+ */
+public class TcpTransport extends StreamTransport {
+
+    /**
+     * The time allowed for establishing a connection.
+     */
+    public static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+
+    public TcpTransport(String host, int port) {
+        this(host, port, DEFAULT_BUFFER_SIZE, DEFAULT_MIN_BACKOFF_MILLIS,
+                DEFAULT_MAX_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param host       the server's host name or address
+     * @param port       the server's TCP port
+     * @param bufferSize the size of the write-behind buffer, in bytes
+     * @param minBackoff the time waited before reconnecting after the first failure
+     * @param maxBackoff the longest time waited before reconnecting
+     * @param unit       the unit of {@code minBackoff} and {@code maxBackoff}
+     */
+    public TcpTransport(String host,
+                        int port,
+                        int bufferSize,
+                        long minBackoff,
+                        long maxBackoff,
+                        TimeUnit unit) {
+        super(bufferSize, minBackoff, maxBackoff, unit);
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    protected SocketChannel open() throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            // lines are already batched by the write-behind buffer
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "tcp://" + host + ":" + port;
+    }
+}
@@ -0,0 +1,112 @@
+package com.bealetech.metrics.reporting;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link StreamTransport} which sends newline terminated lines over a Unix domain stream
+ * socket, such as a local agent's. This avoids the loopback network stack entirely.
+ * <p>
+ * Unix domain socket channels were added in Java 16, so this transport finds them reflectively and
+ * can only be created on Java 16 or later; see {@link #isSupported()}. The JDK has no Unix domain
+ * datagram sockets, so the agent must accept stream connections.
+ */
+public class UnixSocketTransport extends StreamTransport {
+
+    private static final Method OPEN_CHANNEL;
+    private static final Object UNIX_FAMILY;
+    private static final Method ADDRESS_OF;
+
+    static {
+        Method open = null;
+        Object unix = null;
+        Method addressOf = null;
+        try {
+            final Class<?> family = Class.forName("java.net.ProtocolFamily");
+            unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+            open = SocketChannel.class.getMethod("open", family);
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class);
+        } catch (Exception e) {
+            // before Java 16
+            open = null;
+        }
+        OPEN_CHANNEL = open;
+        UNIX_FAMILY = unix;
+        ADDRESS_OF = addressOf;
+    }
+
+    private final String path;
+
+    /**
+     * @param path the path of the agent's socket
+     * @throws UnsupportedOperationException if the JVM has no Unix domain socket channels
+     */
+    public UnixSocketTransport(String path) {
+        this(path, DEFAULT_BUFFER_SIZE, DEFAULT_MIN_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param path       the path of the agent's socket
+     * @param bufferSize the size of the write-behind buffer, in bytes
+     * @param minBackoff the time waited before reconnecting after the first failure
+     * @param maxBackoff the longest time waited before reconnecting
+     * @param unit       the unit of {@code minBackoff} and {@code maxBackoff}
+     * @throws UnsupportedOperationException if the JVM has no Unix domain socket channels
+     */
+    public UnixSocketTransport(String path,
+                               int bufferSize,
+                               long minBackoff,
+                               long maxBackoff,
+                               TimeUnit unit) {
+        super(bufferSize, minBackoff, maxBackoff, unit);
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+        }
+        this.path = path;
+    }
+
+    /**
+     * Returns whether this JVM supports Unix domain socket channels.
+     *
+     * @return {@code true} on Java 16 or later
+     */
+    public static boolean isSupported() {
+        return OPEN_CHANNEL != null;
+    }
+
+    @Override
+    protected SocketChannel open() throws IOException {
+        final SocketChannel channel;
+        final SocketAddress address;
+        try {
+            channel = (SocketChannel) OPEN_CHANNEL.invoke(null, UNIX_FAMILY);
+            address = (SocketAddress) ADDRESS_OF.invoke(null, path);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to open a Unix domain socket", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unable to open a Unix domain socket", e);
+        }
+
+        try {
+            channel.connect(address);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "unix://" + path;
+    }
+}
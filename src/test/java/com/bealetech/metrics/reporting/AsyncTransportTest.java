@@ -0,0 +1,140 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncTransportTest {
+    private final BlockingTransport delegate = new BlockingTransport();
+
+    @Test
+    public void deliversPayloadsInOrder() throws Exception {
+        delegate.release();
+        final AsyncTransport transport = new AsyncTransport(delegate);
+
+        transport.connect();
+        transport.send(payload("one"));
+        transport.send(payload("two"));
+        transport.disconnect();
+        transport.close();
+
+        assertEquals(2, transport.getSent());
+        assertEquals("[one, two]", delegate.received().toString());
+        assertTrue(delegate.closed);
+    }
+
+    @Test
+    public void dropsTheNewestPayloadWhenFull() throws Exception {
+        final AsyncTransport transport = new AsyncTransport(delegate, 1,
+                AsyncTransport.OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS);
+
+        transport.send(payload("one"));
+        delegate.awaitSending();
+        transport.send(payload("two"));
+        transport.send(payload("three"));
+
+        assertEquals(1, transport.getQueueDepth());
+        assertEquals(1, transport.getDropped());
+
+        delegate.release();
+        transport.close();
+
+        assertEquals("[one, two]", delegate.received().toString());
+    }
+
+    @Test
+    public void dropsTheOldestPayloadWhenFull() throws Exception {
+        final AsyncTransport transport = new AsyncTransport(delegate, 1,
+                AsyncTransport.OverflowPolicy.DROP_OLDEST, 0, TimeUnit.MILLISECONDS);
+
+        transport.send(payload("one"));
+        delegate.awaitSending();
+        transport.send(payload("two"));
+        transport.send(payload("three"));
+
+        assertEquals(1, transport.getQueueDepth());
+        assertEquals(1, transport.getDropped());
+
+        delegate.release();
+        transport.close();
+
+        assertEquals("[one, three]", delegate.received().toString());
+    }
+
+    @Test
+    public void givesUpAfterBlockingForTheTimeout() throws Exception {
+        final AsyncTransport transport = new AsyncTransport(delegate, 1,
+                AsyncTransport.OverflowPolicy.BLOCK, 10, TimeUnit.MILLISECONDS);
+
+        transport.send(payload("one"));
+        delegate.awaitSending();
+        transport.send(payload("two"));
+        transport.send(payload("three"));
+
+        assertEquals(1, transport.getDropped());
+
+        delegate.release();
+        transport.close();
+
+        assertEquals("[one, two]", delegate.received().toString());
+    }
+
+    private static ByteBuffer payload(String s) {
+        return ByteBuffer.wrap(s.getBytes());
+    }
+
+    private static class BlockingTransport implements StatsdTransport {
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final List<String> received = new ArrayList<String>();
+        private volatile boolean closed;
+
+        void release() {
+            released.countDown();
+        }
+
+        void awaitSending() throws InterruptedException {
+            sending.await(1, TimeUnit.SECONDS);
+        }
+
+        synchronized List<String> received() {
+            return new ArrayList<String>(received);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void send(ByteBuffer payload) {
+            sending.countDown();
+            try {
+                released.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            synchronized (this) {
+                received.add(new String(bytes));
+            }
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
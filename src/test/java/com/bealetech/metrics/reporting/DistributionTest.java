@@ -0,0 +1,64 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DistributionTest {
+    private final Distribution distribution = new Distribution(0.02);
+
+    @Test
+    public void groupsEqualAndNearbyValuesIntoOneBucket() throws Exception {
+        final double[] values = new double[6];
+        final int[] counts = new int[6];
+
+        final int buckets = distribution.bucket(new long[] {-5, 0, 0, 100, 101, 1000}, values,
+                counts);
+
+        assertEquals(4, buckets);
+        assertArrayEquals(new int[] {1, 2, 2, 1}, Arrays.copyOf(counts, buckets));
+        assertEquals(-5, values[0], 5 * 0.02);
+        assertEquals(0, values[1], 0);
+        assertEquals(100, values[2], 100 * 0.02);
+        assertEquals(1000, values[3], 1000 * 0.02);
+    }
+
+    @Test
+    public void representsEveryValueWithinTheRelativeAccuracy() throws Exception {
+        final Random random = new Random(42);
+        final long[] sorted = new long[10000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = 1 + (long) Math.exp(random.nextDouble() * 30);
+        }
+        Arrays.sort(sorted);
+        final double[] values = new double[sorted.length];
+        final int[] counts = new int[sorted.length];
+
+        final int buckets = distribution.bucket(sorted, values, counts);
+
+        int i = 0;
+        for (int b = 0; b < buckets; b++) {
+            for (int n = 0; n < counts[b]; n++, i++) {
+                assertEquals(sorted[i], values[b], sorted[i] * 0.02);
+            }
+        }
+        assertEquals(sorted.length, i);
+        assertTrue(buckets < sorted.length / 4);
+    }
+
+    @Test
+    public void keepsEnoughSignificantDigitsForTheRelativeAccuracy() throws Exception {
+        assertEquals(2, Distribution.significantDigits(0.05));
+        assertEquals(3, Distribution.significantDigits(0.005));
+        assertEquals(4, Distribution.significantDigits(0.0005));
+        assertEquals(17, Distribution.significantDigits(1e-30));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnAccuracyOfOne() throws Exception {
+        new Distribution(1);
+    }
+}
@@ -0,0 +1,119 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class EndToEndTest {
+    private StatsdSink sink;
+    private Statsd statsd;
+
+    @Before
+    public void setUp() throws Exception {
+        sink = new StatsdSink();
+        statsd = new Statsd(new DatagramChannelTransport("127.0.0.1", sink.getPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        statsd.shutdown();
+        sink.close();
+    }
+
+    @Test
+    public void splitsAReportIntoDatagramsWithinThePayloadLimit() throws Exception {
+        statsd.connect();
+        for (int i = 0; i < 2000; i++) {
+            statsd.send("service.component.metric" + i, i, Statsd.StatType.GAUGE);
+        }
+        statsd.close();
+
+        assertTrue(sink.awaitLines(2000, 5, TimeUnit.SECONDS));
+        assertEquals(statsd.getPacketsSent(), sink.getDatagrams());
+        assertEquals(statsd.getBytesSent(), sink.getBytes());
+        assertTrue(sink.getDatagrams() > 1);
+        assertTrue(sink.getMaxDatagramSize() <= Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        assertEquals(0, sink.getMalformedLines());
+        assertEquals(2000, sink.getNames().size());
+        assertEquals(1999, sink.getLast("service.component.metric1999"), 0);
+    }
+
+    @Test
+    public void reportsRegistryMetricsOverTheWire() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final Counter counter = registry.counter("requests");
+        final Timer timer = registry.timer("latency");
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .prefixedWith("prefix")
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build(statsd);
+
+        counter.inc(5);
+        timer.update(20, TimeUnit.MILLISECONDS);
+        reporter.report();
+        counter.inc(3);
+        reporter.report();
+
+        // the counter's change and the timer's 15 values, twice
+        assertTrue(sink.awaitLines(2 * 16, 5, TimeUnit.SECONDS));
+        assertEquals(8, sink.getSum("prefix.requests.count"), 0);
+        assertEquals("c", sink.getType("prefix.requests.count"));
+        assertEquals(20, sink.getLast("prefix.latency.p99"), 0.001);
+        assertEquals("ms", sink.getType("prefix.latency.p99"));
+        assertEquals(1, sink.getLast("prefix.latency.count"), 0);
+        assertEquals(0, sink.getMalformedLines());
+        reporter.stop();
+    }
+
+    @Test
+    public void skipsScheduledReportsOverrunByASlowOne() throws Exception {
+        final long period = TimeUnit.MILLISECONDS.toNanos(20);
+        final AtomicLong tick = new AtomicLong();
+        final MetricRegistry registry = new MetricRegistry();
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicLong skippedBeforeFourthReport = new AtomicLong(-1);
+        final CountDownLatch reported = new CountDownLatch(1);
+        final StatsdReporter[] reporter = new StatsdReporter[1];
+        registry.register("slow", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                if (reads.incrementAndGet() < 4) {
+                    // each report takes exactly two periods
+                    tick.addAndGet(2 * period);
+                } else if (reported.getCount() > 0) {
+                    skippedBeforeFourthReport.set(reporter[0].getSkippedReports());
+                    reported.countDown();
+                }
+                return 1;
+            }
+        });
+        reporter[0] = StatsdReporter.forRegistry(registry)
+                .withClock(new Clock() {
+                    @Override
+                    public long getTick() {
+                        return tick.get();
+                    }
+                })
+                .build(statsd);
+
+        reporter[0].start(20, TimeUnit.MILLISECONDS);
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        reporter[0].stop();
+
+        // the first report ends just as the second is due, which then runs on time; the second
+        // and third each overrun the tick after them
+        assertEquals(2, skippedBeforeFourthReport.get());
+    }
+}
@@ -0,0 +1,101 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Gauge;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GaugeSamplerTest {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final GaugeSampler sampler =
+            new GaugeSampler(20, TimeUnit.MILLISECONDS, executor, null);
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void readsFastGaugesOnTheCallingThread() throws Exception {
+        final SlowGauge gauge = new SlowGauge(0);
+
+        assertEquals(1, sampler.read("gauge", gauge));
+        assertEquals(2, sampler.read("gauge", gauge));
+        assertEquals(0, sampler.slowGauges());
+    }
+
+    @Test
+    public void sendsTheLastValueOfASlowGaugeWhileItIsReadInTheBackground() throws Exception {
+        final SlowGauge gauge = new SlowGauge(100);
+
+        // over budget, so read in the background from now on
+        assertEquals(1, sampler.read("gauge", gauge));
+        assertEquals(1, sampler.slowGauges());
+
+        final long start = System.nanoTime();
+        assertEquals(1, sampler.read("gauge", gauge));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+
+        awaitReads(gauge, 2);
+        assertEquals(2, sampler.read("gauge", gauge));
+    }
+
+    @Test
+    public void readsAGaugeOnTheCallingThreadOnceItIsFastAgain() throws Exception {
+        final SlowGauge gauge = new SlowGauge(100);
+        sampler.read("gauge", gauge);
+
+        gauge.sleepMillis = 0;
+        sampler.read("gauge", gauge);
+        awaitReads(gauge, 2);
+
+        assertEquals(0, sampler.slowGauges());
+        assertEquals(3, sampler.read("gauge", gauge));
+    }
+
+    @Test
+    public void forgetsRemovedGauges() throws Exception {
+        sampler.read("gauge", new SlowGauge(100));
+        sampler.remove("gauge");
+
+        assertEquals(0, sampler.slowGauges());
+    }
+
+    private void awaitReads(SlowGauge gauge, int reads) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (gauge.reads < reads && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(reads, gauge.reads);
+        // the read is complete once the executor has moved on
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private static class SlowGauge implements Gauge<Integer> {
+        volatile long sleepMillis;
+        volatile int reads;
+
+        SlowGauge(long sleepMillis) {
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        public Integer getValue() {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ++reads;
+        }
+    }
+}
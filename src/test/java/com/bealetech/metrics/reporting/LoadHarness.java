@@ -0,0 +1,146 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a {@link StatsdReporter} against a {@link StatsdSink} on the loopback interface, and
+ * prints how many lines and datagrams arrived, their sizes, and the reporter's CPU time. Long
+ * runs double as a soak test.
+ * <p>
+ * Run it from the test classpath with optional arguments for the number of metrics, the number
+ * of reports, the interval between them in milliseconds, and the transport ({@code channel},
+ * {@code socket} or {@code async}):
+ * <pre>
+ * java -cp ... com.bealetech.metrics.reporting.LoadHarness 100000 60 1000 channel
+ * </pre>
+ * Metrics are split evenly between counters, gauges, histograms, meters and timers, and every
+ * one of them is updated before each report.
+ */
+public class LoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        final int metrics = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int reports = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final long intervalMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        final String transportName = args.length > 3 ? args[3] : "channel";
+
+        final StatsdSink sink = new StatsdSink(4);
+        final StatsdTransport transport;
+        if ("socket".equals(transportName)) {
+            transport = new DatagramSocketTransport("127.0.0.1", sink.getPort());
+        } else if ("async".equals(transportName)) {
+            transport = new AsyncTransport(
+                    new DatagramChannelTransport("127.0.0.1", sink.getPort()));
+        } else if ("channel".equals(transportName)) {
+            transport = new DatagramChannelTransport("127.0.0.1", sink.getPort());
+        } else {
+            throw new IllegalArgumentException("Unknown transport: " + transportName);
+        }
+        final Statsd statsd = new Statsd(transport);
+
+        final MetricRegistry registry = new MetricRegistry();
+        final List<Counter> counters = new ArrayList<Counter>();
+        final List<Histogram> histograms = new ArrayList<Histogram>();
+        final List<Meter> meters = new ArrayList<Meter>();
+        final List<Timer> timers = new ArrayList<Timer>();
+        for (int i = 0; i < metrics; i++) {
+            switch (i % 5) {
+                case 0:
+                    counters.add(registry.counter("load.counter" + i));
+                    break;
+                case 1:
+                    final long value = i;
+                    registry.register("load.gauge" + i, new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return value;
+                        }
+                    });
+                    break;
+                case 2:
+                    histograms.add(registry.histogram("load.histogram" + i));
+                    break;
+                case 3:
+                    meters.add(registry.meter("load.meter" + i));
+                    break;
+                default:
+                    timers.add(registry.timer("load.timer" + i));
+                    break;
+            }
+        }
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build(statsd);
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final Random random = new Random(42);
+        long cpuNanos = 0;
+        long wallNanos = 0;
+        long slowestNanos = 0;
+        for (int report = 0; report < reports; report++) {
+            for (Counter counter : counters) {
+                counter.inc(random.nextInt(10));
+            }
+            for (Histogram histogram : histograms) {
+                histogram.update(random.nextInt(1000));
+            }
+            for (Meter meter : meters) {
+                meter.mark();
+            }
+            for (Timer timer : timers) {
+                timer.update(random.nextInt(100000), TimeUnit.MICROSECONDS);
+            }
+
+            final long cpuStart = threads.getCurrentThreadCpuTime();
+            final long start = System.nanoTime();
+            reporter.report();
+            final long elapsed = System.nanoTime() - start;
+            cpuNanos += threads.getCurrentThreadCpuTime() - cpuStart;
+            wallNanos += elapsed;
+            slowestNanos = Math.max(slowestNanos, elapsed);
+
+            final long remaining = TimeUnit.MILLISECONDS.toNanos(intervalMillis) - elapsed;
+            if (remaining > 0 && report < reports - 1) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+        }
+        sink.awaitQuiet(200, TimeUnit.MILLISECONDS);
+        reporter.stop();
+        sink.close();
+
+        final long linesSent = statsd.getLinesSent();
+        final long datagramsSent = statsd.getPacketsSent();
+        System.out.printf("%d metrics, %d reports every %d ms over %s%n",
+                metrics, reports, intervalMillis, transport);
+        System.out.printf("lines:     %d sent, %d received, %d lost (%.3f%%), %d malformed%n",
+                linesSent, sink.getLines(), linesSent - sink.getLines(),
+                percent(linesSent - sink.getLines(), linesSent), sink.getMalformedLines());
+        System.out.printf("datagrams: %d sent, %d received, %d lost (%.3f%%), %d send failures%n",
+                datagramsSent, sink.getDatagrams(), datagramsSent - sink.getDatagrams(),
+                percent(datagramsSent - sink.getDatagrams(), datagramsSent),
+                statsd.getSendFailures());
+        System.out.printf("sizes:     %.1f bytes on average, %d at most%n",
+                sink.getDatagrams() == 0 ? 0.0 : (double) sink.getBytes() / sink.getDatagrams(),
+                sink.getMaxDatagramSize());
+        System.out.printf("reporter:  %.2f ms CPU and %.2f ms wall per report, %.2f ms slowest, "
+                        + "%.0f lines per CPU second%n",
+                cpuNanos / 1e6 / reports, wallNanos / 1e6 / reports, slowestNanos / 1e6,
+                cpuNanos == 0 ? 0.0 : linesSent / (cpuNanos / 1e9));
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+}
@@ -0,0 +1,73 @@
+package com.bealetech.metrics.reporting;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MetricIndexTest {
+    private final MetricRegistry registry = new MetricRegistry();
+    private final MetricIndex index = new MetricIndex(new MetricFilter() {
+        @Override
+        public boolean matches(String name, Metric metric) {
+            return !name.startsWith("ignored");
+        }
+    });
+
+    @Test
+    public void indexesMetricsAlreadyInTheRegistry() throws Exception {
+        final Counter counter = registry.counter("requests");
+        registry.timer("latency");
+        registry.addListener(index);
+
+        assertEquals(0, index.counters.size());
+        index.update();
+
+        assertEquals(1, index.counters.size());
+        assertEquals("requests", index.counters.name(0));
+        assertSame(counter, index.counters.metric(0));
+        assertEquals(1, index.timers.size());
+        assertEquals(0, index.gauges.size());
+    }
+
+    @Test
+    public void appliesTheFilterWhenMetricsAreAdded() throws Exception {
+        registry.addListener(index);
+        registry.counter("ignored.requests");
+        registry.counter("requests");
+        index.update();
+
+        assertEquals(1, index.counters.size());
+        assertEquals("requests", index.counters.name(0));
+    }
+
+    @Test
+    public void fillsRemovedSlotsAndKeepsTheRest() throws Exception {
+        registry.addListener(index);
+        for (int i = 0; i < 100; i++) {
+            registry.counter("counter" + i);
+        }
+        index.update();
+        for (int i = 0; i < 100; i += 3) {
+            registry.remove("counter" + i);
+        }
+        registry.remove("counter1");
+        registry.counter("counter1");
+        index.update();
+
+        final Set<String> names = new HashSet<String>();
+        for (int i = 0; i < index.counters.size(); i++) {
+            names.add(index.counters.name(i));
+            assertSame(registry.getCounters().get(index.counters.name(i)),
+                    index.counters.metric(i));
+        }
+        assertEquals(registry.getCounters().keySet(), names);
+        assertEquals(66, index.counters.size());
+    }
+}
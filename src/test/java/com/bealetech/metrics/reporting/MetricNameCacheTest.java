@@ -0,0 +1,97 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricNameCacheTest {
+    private final MetricNameCache names = new MetricNameCache("prefix", 2);
+
+    @Test
+    public void encodesPrefixedAndSanitizedNames() throws Exception {
+        assertArrayEquals("prefix.my-timer.p99".getBytes(), names.get("my timer", "p99"));
+        assertArrayEquals("prefix.my-gauge".getBytes(), names.get("my gauge"));
+    }
+
+    @Test
+    public void reusesEncodedNames() throws Exception {
+        assertSame(names.get("timer", "p99"), names.get("timer", "p99"));
+        assertNotSame(names.get("timer", "p99"), names.get("timer", "p999"));
+    }
+
+    @Test
+    public void forgetsRemovedMetrics() throws Exception {
+        final byte[] name = names.get("timer", "p99");
+
+        names.onTimerRemoved("timer");
+
+        assertEquals(0, names.size());
+        assertNotSame(name, names.get("timer", "p99"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedMetric() throws Exception {
+        final byte[] first = names.get("first");
+        names.get("second");
+        names.get("first");
+        names.get("third");
+
+        assertEquals(2, names.size());
+        assertSame(first, names.get("first"));
+    }
+
+    @Test
+    public void looksNamesUpWhileAnotherThreadHoldsTheCache() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (names) {
+                final Future<byte[]> name = executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return names.get("timer", "p99");
+                    }
+                });
+                assertArrayEquals("prefix.timer.p99".getBytes(), name.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void staysNearItsBoundWhenLookedUpConcurrently() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Void>> lookups = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                lookups.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 10000; i++) {
+                            final String name = "timer" + (i % 100) * 4 + thread;
+                            assertArrayEquals(("prefix." + name + ".p99").getBytes(),
+                                    names.get(name, "p99"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> lookup : lookups) {
+                lookup.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(names.size() <= 2);
+    }
+}
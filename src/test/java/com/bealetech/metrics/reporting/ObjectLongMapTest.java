@@ -0,0 +1,55 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ObjectLongMapTest {
+    private final ObjectLongMap<String> map = new ObjectLongMap<String>();
+
+    @Test
+    public void returnsTheMissingValueForAbsentKeys() throws Exception {
+        assertEquals(-1, map.get("absent", -1));
+        assertFalse(map.containsKey("absent"));
+    }
+
+    @Test
+    public void replacesValues() throws Exception {
+        map.put("counter", 1);
+        map.put("counter", 2);
+
+        assertEquals(2, map.get("counter", 0));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void growsAndRemovesEntries() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            map.put("metric-" + i, i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(map.remove("metric-" + i));
+        }
+
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, map.get("metric-" + i, -1));
+        }
+    }
+
+    @Test
+    public void copiesEntriesFromAnotherMap() throws Exception {
+        final ObjectLongMap<String> other = new ObjectLongMap<String>();
+        map.put("first", 1);
+        other.put("first", 10);
+        other.put("second", 20);
+
+        map.putAll(other);
+        other.clear();
+
+        assertEquals(10, map.get("first", 0));
+        assertEquals(20, map.get("second", 0));
+        assertTrue(other.isEmpty());
+        assertEquals(-1, other.get("first", -1));
+    }
+}
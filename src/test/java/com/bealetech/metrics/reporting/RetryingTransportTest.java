@@ -0,0 +1,139 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RetryingTransportTest {
+    private final RecordingTransport server = new RecordingTransport();
+
+    @Test
+    public void sendsKeptPayloadsOldestFirstOnceTheServerRecovers() throws Exception {
+        final RetryingTransport transport = new RetryingTransport(server);
+        final Statsd statsd = new Statsd(transport);
+
+        server.failing = true;
+        report(statsd, "a", 1);
+        report(statsd, "b", 2);
+        assertTrue(server.lines.isEmpty());
+        assertEquals(2, transport.getSpilled());
+
+        server.failing = false;
+        report(statsd, "c", 3);
+
+        assertEquals(Arrays.asList("a:1|g", "b:2|g", "c:3|g"), server.lines);
+        assertEquals(2, transport.getReplayed());
+        assertEquals(0, transport.getDropped());
+        assertEquals(0, transport.getBufferedBytes());
+    }
+
+    @Test
+    public void dropsTheOldestPayloadsWhenFull() throws Exception {
+        // room for two of these lines and their framing
+        final RetryingTransport transport = new RetryingTransport(server, 28);
+        final Statsd statsd = new Statsd(transport);
+
+        server.failing = true;
+        report(statsd, "first", 1);
+        report(statsd, "second", 2);
+        report(statsd, "third", 3);
+        assertEquals(1, transport.getDropped());
+
+        server.failing = false;
+        transport.connect();
+        transport.disconnect();
+
+        assertEquals(Arrays.asList("second:2|g", "third:3|g"), server.lines);
+    }
+
+    @Test
+    public void dropsPayloadsLargerThanTheBuffer() throws Exception {
+        final RetryingTransport transport = new RetryingTransport(server, 8);
+
+        server.failing = true;
+        transport.connect();
+        transport.send(ByteBuffer.wrap("toolong:1|g".getBytes("UTF-8")));
+
+        assertEquals(0, transport.getSpilled());
+        assertEquals(1, transport.getDropped());
+    }
+
+    @Test
+    public void wrapsPayloadsAroundTheEndOfTheBuffer() throws Exception {
+        // room for two of these lines and their framing, so each one evicts the oldest
+        final RetryingTransport transport = new RetryingTransport(server, 30);
+        final Statsd statsd = new Statsd(transport);
+
+        server.failing = true;
+        for (int i = 0; i < 10; i++) {
+            report(statsd, "metric", i);
+        }
+        server.failing = false;
+        transport.connect();
+
+        assertEquals(Arrays.asList("metric:8|g", "metric:9|g"), server.lines);
+        assertEquals(8, transport.getDropped());
+    }
+
+    @Test
+    public void resumesKeptPayloadsFromAFile() throws Exception {
+        final File file = File.createTempFile("statsd", ".spill");
+        file.deleteOnExit();
+
+        server.failing = true;
+        final RetryingTransport before = new RetryingTransport(server, file, 1024);
+        report(new Statsd(before), "kept", 1);
+        before.close();
+
+        server.failing = false;
+        final RetryingTransport after = new RetryingTransport(server, file, 1024);
+        assertEquals(12, after.getBufferedBytes());
+        report(new Statsd(after), "new", 2);
+        after.close();
+
+        assertEquals(Arrays.asList("kept:1|g", "new:2|g"), server.lines);
+    }
+
+    private static void report(Statsd statsd, String name, long value) throws IOException {
+        statsd.connect();
+        statsd.send(name, value, Statsd.StatType.GAUGE);
+        statsd.close();
+    }
+
+    private static class RecordingTransport implements StatsdTransport {
+        final List<String> lines = new ArrayList<String>();
+        boolean failing;
+
+        @Override
+        public void connect() throws IOException {
+            if (failing) {
+                throw new IOException("down");
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer payload) throws IOException {
+            if (failing) {
+                throw new IOException("down");
+            }
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            lines.addAll(Arrays.asList(new String(bytes, "UTF-8").split("\n")));
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedTransportTest {
+    private final List<RecordingTransport> shards = Arrays.asList(
+            new RecordingTransport("a"), new RecordingTransport("b"), new RecordingTransport("c"));
+
+    @Test
+    public void sendsEachNameToTheSameShard() throws Exception {
+        final ShardedTransport transport = new ShardedTransport(shards);
+        final Statsd statsd = new Statsd(transport);
+
+        for (int report = 0; report < 3; report++) {
+            statsd.connect();
+            for (int i = 0; i < 300; i++) {
+                statsd.send("metric" + i, i, Statsd.StatType.GAUGE);
+            }
+            statsd.close();
+        }
+
+        final Map<String, Integer> owners = new HashMap<String, Integer>();
+        for (int s = 0; s < shards.size(); s++) {
+            final List<String> lines = shards.get(s).lines;
+            // every shard takes a fair share of the names
+            assertTrue(lines.size() > 3 * 50);
+            for (String line : lines) {
+                final Integer previous = owners.put(line.substring(0, line.indexOf(':')), s);
+                assertTrue(previous == null || previous == s);
+            }
+            assertTrue(shards.get(s).maxDatagram <= Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        }
+        assertEquals(300, owners.size());
+        assertEquals(transport.shardOf("metric7"), (int) owners.get("metric7"));
+    }
+
+    @Test
+    public void movesOnlyAFailedShardsNamesAndLosesNoLines() throws Exception {
+        final ShardedTransport transport =
+                new ShardedTransport(shards, Statsd.DEFAULT_MAX_PAYLOAD_SIZE, 1, TimeUnit.HOURS);
+        final Statsd statsd = new Statsd(transport);
+        // connects, so its lines are buffered before the send fails
+        shards.get(1).failingSends = true;
+
+        statsd.connect();
+        for (int i = 0; i < 300; i++) {
+            statsd.send("metric" + i, i, Statsd.StatType.GAUGE);
+        }
+        statsd.close();
+
+        assertTrue(shards.get(1).lines.isEmpty());
+        assertEquals(300, shards.get(0).lines.size() + shards.get(2).lines.size());
+        for (int s = 0; s < shards.size(); s += 2) {
+            for (String line : shards.get(s).lines) {
+                final String name = line.substring(0, line.indexOf(':'));
+                assertTrue(transport.shardOf(name) == s || transport.shardOf(name) == 1);
+            }
+        }
+        assertEquals(1, transport.getUnhealthyShards());
+        assertTrue(transport.getFailovers() > 0);
+    }
+
+    @Test
+    public void sendsNothingMoreToAShardWhichFailedMidBatch() throws Exception {
+        // small datagrams, so that shards are flushed while lines are still being routed
+        final ShardedTransport transport = new ShardedTransport(shards, 40, 1, TimeUnit.HOURS);
+        final Statsd statsd = new Statsd(transport, 40);
+        shards.get(1).failingSends = true;
+
+        statsd.connect();
+        for (int i = 0; i < 300; i++) {
+            statsd.send("metric" + i, i, Statsd.StatType.GAUGE);
+        }
+        statsd.close();
+
+        assertEquals(1, shards.get(1).sends);
+        assertEquals(300, shards.get(0).lines.size() + shards.get(2).lines.size());
+        assertEquals(1, transport.getShardFailures());
+    }
+
+    @Test
+    public void routesALineTooLongForADatagramAwayFromAFailedShard() throws Exception {
+        final ShardedTransport transport = new ShardedTransport(shards, 20, 1, TimeUnit.HOURS);
+        String name = "a.name.too.long.for.one.datagram";
+        for (int i = 0; transport.shardOf(name) != 1; i++) {
+            name = "a.name.too.long.for.one.datagram" + i;
+        }
+        shards.get(1).failingSends = true;
+
+        transport.connect();
+        transport.send(ByteBuffer.wrap((name + ":1|c").getBytes("UTF-8")));
+        transport.disconnect();
+
+        assertEquals(1, shards.get(1).sends);
+        final List<String> lines = new ArrayList<String>(shards.get(0).lines);
+        lines.addAll(shards.get(2).lines);
+        assertEquals(Arrays.asList(name + ":1|c"), lines);
+        assertEquals(1, transport.getUnhealthyShards());
+    }
+
+    @Test
+    public void returnsAShardToTheRingAfterTheRetryInterval() throws Exception {
+        final ShardedTransport transport =
+                new ShardedTransport(shards, Statsd.DEFAULT_MAX_PAYLOAD_SIZE, 0, TimeUnit.SECONDS);
+        final Statsd statsd = new Statsd(transport);
+        shards.get(1).failing = true;
+
+        statsd.connect();
+        statsd.send("metric", 1, Statsd.StatType.GAUGE);
+        statsd.close();
+        shards.get(1).failing = false;
+
+        statsd.connect();
+        assertEquals(0, transport.getUnhealthyShards());
+        statsd.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenNoShardIsHealthy() throws Exception {
+        for (RecordingTransport shard : shards) {
+            shard.failing = true;
+        }
+
+        new ShardedTransport(shards).connect();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShardsWhichAreDescribedAlike() throws Exception {
+        new ShardedTransport(Arrays.asList(new RecordingTransport("a"),
+                new RecordingTransport("a")));
+    }
+
+    @Test
+    public void placesShardsOnTheRingByTheirKeys() throws Exception {
+        // described alike, so only their keys tell them apart
+        final List<RecordingTransport> alike = Arrays.asList(new RecordingTransport("statsd"),
+                new RecordingTransport("statsd"), new RecordingTransport("statsd"));
+        final Map<String, RecordingTransport> keyed =
+                new LinkedHashMap<String, RecordingTransport>();
+        keyed.put("statsd-1:8125", alike.get(0));
+        keyed.put("statsd-2:8125", alike.get(1));
+        keyed.put("statsd-3:8125", alike.get(2));
+        final Map<String, RecordingTransport> reordered =
+                new LinkedHashMap<String, RecordingTransport>();
+        reordered.put("statsd-3:8125", alike.get(2));
+        reordered.put("statsd-1:8125", alike.get(0));
+        reordered.put("statsd-2:8125", alike.get(1));
+
+        final ShardedTransport transport = new ShardedTransport(keyed);
+        final ShardedTransport other = new ShardedTransport(reordered);
+        final List<RecordingTransport> otherShards =
+                new ArrayList<RecordingTransport>(reordered.values());
+        final int[] names = new int[alike.size()];
+        for (int i = 0; i < 300; i++) {
+            final int shard = transport.shardOf("metric" + i);
+            assertSame(alike.get(shard), otherShards.get(other.shardOf("metric" + i)));
+            names[shard]++;
+        }
+        for (int count : names) {
+            assertTrue(count > 50);
+        }
+    }
+
+    private static class RecordingTransport implements StatsdTransport {
+        private final String name;
+        final List<String> lines = new ArrayList<String>();
+        int sends;
+        int maxDatagram;
+        boolean failing;
+        boolean failingSends;
+
+        RecordingTransport(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (failing) {
+                throw new IOException("down");
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer payload) throws IOException {
+            sends++;
+            if (failing || failingSends) {
+                throw new IOException("down");
+            }
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            maxDatagram = Math.max(maxDatagram, bytes.length);
+            lines.addAll(Arrays.asList(new String(bytes, "UTF-8").split("\n")));
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
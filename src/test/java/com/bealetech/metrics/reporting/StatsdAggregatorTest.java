@@ -0,0 +1,127 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StatsdAggregatorTest {
+    private final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+    private final StatsdClient client = StatsdClient.forTransport(sent)
+            .flushEvery(1, TimeUnit.HOURS)
+            .build();
+    private final StatsdAggregator aggregator = new StatsdAggregator(true, true, 100, false);
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+    }
+
+    @Test
+    public void removesNamesWhichRecordedNothingForAFlush() throws Exception {
+        aggregator.count("counter", 2);
+        aggregator.gauge("gauge", 1.5);
+        aggregator.timing("timer", 12);
+
+        assertEquals(Arrays.asList("counter:2|c", "gauge:1.50|g", "timer:12.00|ms"), drain());
+        assertEquals(3, aggregator.size());
+
+        assertEquals(Arrays.<String>asList(), drain());
+        assertEquals(0, aggregator.size());
+
+        aggregator.count("counter", 1);
+        aggregator.gauge("gauge", 3L);
+        aggregator.timing("timer", 4);
+        assertEquals(Arrays.asList("counter:1|c", "gauge:3|g", "timer:4.00|ms"), drain());
+    }
+
+    @Test
+    public void losesNoIncrementsToTheRemovalOfIdleNames() throws Exception {
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20000; j++) {
+                        aggregator.count("counter", 1);
+                        if (j % 100 == 0) {
+                            // leave the counter idle for a flush now and then
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        long total = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            for (String line : drain()) {
+                total += Long.parseLong(line.substring("counter:".length(), line.indexOf('|')));
+            }
+        }
+
+        assertEquals(4 * 20000, total);
+    }
+
+    @Test
+    public void sendsEachGaugeValueWithItsOwnType() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread longs = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    aggregator.gauge("gauge", 5L);
+                }
+            }
+        });
+        final Thread doubles = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    aggregator.gauge("gauge", 2.5);
+                }
+            }
+        });
+        longs.start();
+        doubles.start();
+
+        try {
+            for (int i = 0; i < 2000; i++) {
+                for (String line : drain()) {
+                    assertTrue(line, line.equals("gauge:5|g") || line.equals("gauge:2.50|g"));
+                }
+            }
+        } finally {
+            running.set(false);
+            longs.join();
+            doubles.join();
+        }
+    }
+
+    private List<String> drain() throws Exception {
+        aggregator.drain(client);
+        client.flush();
+        final List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < sent.size(); i++) {
+            final ByteBuffer payload = sent.payload(i);
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            lines.addAll(Arrays.asList(new String(bytes, "UTF-8").split("\n")));
+        }
+        sent.clear();
+        return lines;
+    }
+}
@@ -0,0 +1,288 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatsdClientTest {
+    private DatagramSocket server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(1000);
+        server.setReceiveBufferSize(1 << 20);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void sendsEachKindOfValue() throws Exception {
+        final StatsdClient client = client().prefixedWith("app").build();
+
+        client.increment("requests");
+        client.increment("bytes in", 512);
+        client.timing("latency", 12);
+        client.timing("fast", 1500, TimeUnit.MICROSECONDS);
+        client.gauge("queue", 3);
+        client.gauge("load", 0.5);
+        client.set("users", 42);
+        client.set("sessions", "a b");
+        client.close();
+
+        assertEquals("app.requests:1|c\n" +
+                "app.bytes-in:512|c\n" +
+                "app.latency:12|ms\n" +
+                "app.fast:1.50|ms\n" +
+                "app.queue:3|g\n" +
+                "app.load:0.50|g\n" +
+                "app.users:42|s\n" +
+                "app.sessions:a-b|s", receive());
+    }
+
+    @Test
+    public void splitsValuesIntoDatagramsOfTheMaximumPayloadSize() throws Exception {
+        final StatsdClient client = client().maxPayloadSize(32).build();
+
+        for (int i = 0; i < 10; i++) {
+            client.increment("counter");
+        }
+        client.close();
+
+        int total = 0;
+        while (total < 10) {
+            final String payload = receive();
+            assertTrue(payload.length() <= 32);
+            total += payload.split("\n").length;
+        }
+        assertEquals(10, total);
+        assertEquals(5, client.getPacketsSent());
+    }
+
+    @Test
+    public void flushesPartialDatagramsOnTheFlushInterval() throws Exception {
+        final StatsdClient client = client().flushEvery(10, TimeUnit.MILLISECONDS).build();
+        try {
+            client.increment("counter");
+
+            assertEquals("counter:1|c", receive());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws Exception {
+        final StatsdClient client = client().stripes(4).build();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        client.increment("counter");
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        client.close();
+
+        int total = 0;
+        while (total < 8000) {
+            for (String line : receive().split("\n")) {
+                assertEquals("counter:1|c", line);
+                total++;
+            }
+        }
+        assertEquals(8000, total);
+        assertEquals(0, client.getSendFailures());
+    }
+
+    @Test
+    public void aggregatesCountersAndGaugesBetweenFlushes() throws Exception {
+        final StatsdClient client = client().aggregate(true).stripes(4).build();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        client.increment("counter");
+                        client.gauge("gauge", j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        client.timing("latency", 12);
+        client.close();
+
+        assertEquals("counter:8000|c\n" +
+                "gauge:999|g\n" +
+                "latency:12|ms", sortedLines(receive()));
+        assertEquals(1, client.getPacketsSent());
+    }
+
+    @Test
+    public void aggregatesTimerSamplesWhenAsked() throws Exception {
+        final StatsdClient client = client().aggregateTimers(true).build();
+
+        client.timing("latency", 12);
+        client.timing("latency", 3);
+        client.increment("counter");
+        client.increment("counter");
+        client.close();
+
+        assertEquals("counter:1|c\n" +
+                "counter:1|c\n" +
+                "latency:12.00|ms\n" +
+                "latency:3.00|ms", sortedLines(receive()));
+    }
+
+    @Test
+    public void packsBufferedTimerSamplesIntoMultiValueLines() throws Exception {
+        final StatsdClient client = client()
+                .maxPayloadSize(32)
+                .aggregateTimers(true)
+                .multiValueLines(true)
+                .build();
+
+        for (int i = 1; i <= 6; i++) {
+            client.timing("latency", i);
+        }
+        client.close();
+
+        assertEquals("latency:1.00:2.00:3.00:4.00|ms", receive());
+        assertEquals("latency:5.00:6.00|ms", receive());
+        assertEquals(2, client.getPacketsSent());
+    }
+
+    @Test
+    public void sendsASampleOfValuesAnnotatedWithTheRate() throws Exception {
+        final StatsdClient client = client()
+                .sampleRate(0.25)
+                .sampleRate("exact", 1.0)
+                .build();
+
+        for (int i = 0; i < 2000; i++) {
+            client.timing("latency", 7);
+        }
+        client.increment("exact");
+        client.gauge("queue", 3);
+        client.close();
+
+        int sampled = 0;
+        final StringBuilder rest = new StringBuilder();
+        for (long i = client.getPacketsSent(); i > 0; i--) {
+            for (String line : receive().split("\n")) {
+                if (line.equals("latency:7|ms|@0.25")) {
+                    sampled++;
+                } else {
+                    rest.append(line).append('\n');
+                }
+            }
+        }
+
+        assertTrue("sent " + sampled + " of 2000", sampled > 350 && sampled < 650);
+        assertEquals("exact:1|c\nqueue:3|g\n", rest.toString());
+    }
+
+    @Test(timeout = 5000)
+    public void keepsRecordingWhileTheTransportIsBlocked() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger sent = new AtomicInteger();
+        final StatsdTransport blocked = new StatsdTransport() {
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void send(ByteBuffer payload) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                sent.incrementAndGet();
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final StatsdClient client = StatsdClient.forTransport(blocked)
+                .maxPayloadSize(32)
+                .flushEvery(1, TimeUnit.MINUTES)
+                .build();
+
+        // fills dozens of datagrams, none of which can be sent yet
+        for (int i = 0; i < 100; i++) {
+            client.increment("counter");
+        }
+        assertEquals(0, sent.get());
+
+        release.countDown();
+        client.close();
+        assertEquals(50, sent.get());
+        assertEquals(0, client.getDroppedPackets());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSampleRatesOfZero() throws Exception {
+        client().sampleRate(0);
+    }
+
+    private static String sortedLines(String payload) {
+        final String[] lines = payload.split("\n");
+        Arrays.sort(lines);
+        final StringBuilder sorted = new StringBuilder();
+        for (String line : lines) {
+            if (sorted.length() > 0) {
+                sorted.append('\n');
+            }
+            sorted.append(line);
+        }
+        return sorted.toString();
+    }
+
+    private StatsdClient.Builder client() {
+        return StatsdClient.forTransport(
+                new DatagramChannelTransport("127.0.0.1", server.getLocalPort()))
+                .flushEvery(1, TimeUnit.MINUTES);
+    }
+
+    private String receive() throws Exception {
+        final byte[] buffer = new byte[Statsd.MAX_UDP_PAYLOAD_SIZE];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+    }
+}
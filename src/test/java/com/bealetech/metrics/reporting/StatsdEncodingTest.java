@@ -0,0 +1,29 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StatsdEncodingTest {
+    @Test
+    public void encodesNamesLikeTheReporter() throws Exception {
+        assertArrayEquals("queue-size.p99".getBytes("UTF-8"),
+                StatsdEncoding.encodeName("queue \t size.p99"));
+        assertArrayEquals("caf\u00e9".getBytes("UTF-8"), StatsdEncoding.encodeName("caf\u00e9"));
+    }
+
+    @Test
+    public void encodesDoublesInTheirPredictedLength() throws Exception {
+        final double[] values = {0, -0.0, -0.004, 0.005, 2.346, -1.5, 9.999, -99.995, 1e12,
+                1e20, -1e20, Double.NaN, Double.NEGATIVE_INFINITY};
+        final String[] expected = {"0.00", "0.00", "0.00", "0.01", "2.35", "-1.50", "10.00",
+                "-100.00", "1000000000000.00", "100000000000000000000.00",
+                "-100000000000000000000.00", "NaN", "-Infinity"};
+        for (int i = 0; i < values.length; i++) {
+            final int length = StatsdEncoding.doubleLength(values[i]);
+            final byte[] bytes = new byte[length + 2];
+            assertEquals(length + 1, StatsdEncoding.encodeDouble(values[i], bytes, 1));
+            assertEquals(expected[i], new String(bytes, 1, length, "US-ASCII"));
+        }
+    }
+}
@@ -5,10 +5,29 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InOrder;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bealetech.metrics.reporting.Statsd.StatType.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 public class StatsdReporterTest {
@@ -48,7 +67,7 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.gauge", "1", Statsd.StatType.GAUGE);
+        inOrder.verify(statsd).send(name("prefix.gauge"), eq(1L), eq(GAUGE));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -64,7 +83,7 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.gauge", "1", Statsd.StatType.GAUGE);
+        inOrder.verify(statsd).send(name("prefix.gauge"), eq(1L), eq(GAUGE));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -80,7 +99,7 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.gauge", "1", Statsd.StatType.GAUGE);
+        inOrder.verify(statsd).send(name("prefix.gauge"), eq(1L), eq(GAUGE));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -96,7 +115,7 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.gauge", "1", Statsd.StatType.GAUGE);
+        inOrder.verify(statsd).send(name("prefix.gauge"), eq(1L), eq(GAUGE));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -112,7 +131,7 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.gauge", "1.10", Statsd.StatType.GAUGE);
+        inOrder.verify(statsd).send(name("prefix.gauge"), eq((double) 1.1f), eq(GAUGE));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -128,7 +147,7 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.gauge", "1.10", Statsd.StatType.GAUGE);
+        inOrder.verify(statsd).send(name("prefix.gauge"), eq(1.1), eq(GAUGE));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -147,12 +166,501 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.counter.count", "100", Statsd.StatType.COUNTER);
+        inOrder.verify(statsd).send(name("prefix.counter.count"), eq(100L), eq(COUNTER));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
     }
 
+    @Test
+    public void reportsTheChangeInCountersSinceTheLastReport() throws Exception {
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(100L, 100L, 150L);
+
+        for (int i = 0; i < 3; i++) {
+            reporter.report(this.<Gauge>map(),
+                    this.<Counter>map("counter", counter),
+                    this.<Histogram>map(),
+                    this.<Meter>map(),
+                    this.<Timer>map());
+        }
+
+        final InOrder inOrder = inOrder(statsd);
+        inOrder.verify(statsd).send(name("prefix.counter.count"), eq(100L), eq(COUNTER));
+        inOrder.verify(statsd).send(name("prefix.counter.count"), eq(50L), eq(COUNTER));
+        verify(statsd, times(2)).send(any(byte[].class), anyLong(), eq(COUNTER));
+    }
+
+    @Test
+    public void resendsCounterChangesAfterAFailedReport() throws Exception {
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(100L, 150L);
+        doThrow(new IOException("unreachable")).doNothing().when(statsd).close();
+
+        for (int i = 0; i < 2; i++) {
+            reporter.report(this.<Gauge>map(),
+                    this.<Counter>map("counter", counter),
+                    this.<Histogram>map(),
+                    this.<Meter>map(),
+                    this.<Timer>map());
+        }
+
+        final InOrder inOrder = inOrder(statsd);
+        inOrder.verify(statsd).send(name("prefix.counter.count"), eq(100L), eq(COUNTER));
+        inOrder.verify(statsd).send(name("prefix.counter.count"), eq(150L), eq(COUNTER));
+    }
+
+    @Test
+    public void dropsCounterChangesAfterAFailedReportWhenNotRetransmitting() throws Exception {
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .prefixedWith("prefix")
+                .retransmitCounters(false)
+                .build(statsd);
+        final Counter counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(100L, 150L);
+        doThrow(new IOException("unreachable")).doNothing().when(statsd).close();
+
+        for (int i = 0; i < 2; i++) {
+            reporter.report(this.<Gauge>map(),
+                    this.<Counter>map("counter", counter),
+                    this.<Histogram>map(),
+                    this.<Meter>map(),
+                    this.<Timer>map());
+        }
+
+        final InOrder inOrder = inOrder(statsd);
+        inOrder.verify(statsd).send(name("prefix.counter.count"), eq(100L), eq(COUNTER));
+        inOrder.verify(statsd).send(name("prefix.counter.count"), eq(50L), eq(COUNTER));
+    }
+
+    @Test
+    public void skipsUnchangedGaugesBetweenHeartbeats() throws Exception {
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .prefixedWith("prefix")
+                .skipUnchanged(true)
+                .heartbeatEvery(2)
+                .build(statsd);
+
+        for (int i = 0; i < 3; i++) {
+            reporter.report(map("gauge", gauge(1)),
+                    this.<Counter>map(),
+                    this.<Histogram>map(),
+                    this.<Meter>map(),
+                    this.<Timer>map());
+        }
+
+        verify(statsd, times(2)).send(name("prefix.gauge"), eq(1L), eq(GAUGE));
+    }
+
+    @Test
+    public void skipsTimersWithoutNewRecordings() throws Exception {
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .prefixedWith("prefix")
+                .skipUnchanged(true)
+                .build(statsd);
+        final Timer timer = mock(Timer.class);
+        when(timer.getCount()).thenReturn(1L);
+        when(timer.getSnapshot()).thenReturn(mock(Snapshot.class));
+
+        for (int i = 0; i < 3; i++) {
+            if (i == 2) {
+                when(timer.getCount()).thenReturn(2L);
+            }
+            reporter.report(this.<Gauge>map(),
+                    this.<Counter>map(),
+                    this.<Histogram>map(),
+                    this.<Meter>map(),
+                    map("timer", timer));
+        }
+
+        verify(timer, times(2)).getSnapshot();
+        verify(statsd, times(2)).send(name("prefix.timer.count"), anyLong(), eq(GAUGE));
+    }
+
+    @Test
+    public void onlyReportsTheSelectedAttributes() throws Exception {
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .prefixedWith("prefix")
+                .timerAttributes(EnumSet.of(StatAttribute.COUNT))
+                .attributesFor("slow\\..*",
+                        EnumSet.of(StatAttribute.PERCENTILES, StatAttribute.COUNT))
+                .percentiles(0.9, 0.999)
+                .build(statsd);
+        final Timer timer = mock(Timer.class);
+        when(timer.getCount()).thenReturn(1L);
+        final Timer slowTimer = mock(Timer.class);
+        when(slowTimer.getCount()).thenReturn(2L);
+        final Snapshot snapshot = mock(Snapshot.class);
+        when(snapshot.getValue(0.9)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(100));
+        when(snapshot.getValue(0.999)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(200));
+        when(slowTimer.getSnapshot()).thenReturn(snapshot);
+
+        final SortedMap<String, Timer> timers = new TreeMap<String, Timer>();
+        timers.put("fast.timer", timer);
+        timers.put("slow.timer", slowTimer);
+        reporter.report(this.<Gauge>map(),
+                this.<Counter>map(),
+                this.<Histogram>map(),
+                this.<Meter>map(),
+                timers);
+
+        final InOrder inOrder = inOrder(statsd);
+        inOrder.verify(statsd).connect();
+        inOrder.verify(statsd).send(name("prefix.fast.timer.count"), eq(1L), eq(GAUGE));
+        inOrder.verify(statsd).send(name("prefix.slow.timer.p90"), eq(100.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.slow.timer.p999"), eq(200.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.slow.timer.count"), eq(2L), eq(GAUGE));
+        inOrder.verify(statsd).close();
+
+        verifyNoMoreInteractions(statsd);
+        verify(timer, never()).getSnapshot();
+    }
+
+    @Test
+    public void reportsInParallelOnTheExecutor() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                    .meterAttributes(EnumSet.of(StatAttribute.COUNT))
+                    .reportInParallel(executor, 4)
+                    .build(new Statsd(sent));
+            final SortedMap<String, Meter> meters = new TreeMap<String, Meter>();
+            for (int i = 0; i < 1000; i++) {
+                final Meter meter = new Meter();
+                meter.mark(i);
+                meters.put("meter" + i, meter);
+            }
+
+            reporter.report(this.<Gauge>map(),
+                    this.<Counter>map(),
+                    this.<Histogram>map(),
+                    meters,
+                    this.<Timer>map());
+
+            final Set<String> lines = lines(sent);
+            assertEquals(1000, lines.size());
+            assertTrue(lines.contains("meter999.count:999|g"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void runsTheSlicesOfAParallelReportAtTheSameTime() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                    .reportInParallel(executor, 4)
+                    .build(new Statsd(sent));
+            // each of the four slices waits for all of them to have started
+            final CountDownLatch started = new CountDownLatch(4);
+            final AtomicInteger overlapping = new AtomicInteger();
+            final SortedMap<String, Histogram> histograms = new TreeMap<String, Histogram>();
+            for (int i = 0; i < 256; i++) {
+                final boolean first = i % 64 == 0;
+                histograms.put(String.format("histogram%03d", i),
+                        new Histogram(new UniformReservoir()) {
+                            @Override
+                            public Snapshot getSnapshot() {
+                                if (first) {
+                                    started.countDown();
+                                    try {
+                                        if (started.await(5, TimeUnit.SECONDS)) {
+                                            overlapping.incrementAndGet();
+                                        }
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                }
+                                return super.getSnapshot();
+                            }
+                        });
+            }
+
+            reporter.report(this.<Gauge>map(),
+                    this.<Counter>map(),
+                    histograms,
+                    this.<Meter>map(),
+                    this.<Timer>map());
+
+            assertEquals(4, overlapping.get());
+            assertTrue(lines(sent).contains("histogram255.count:0|g"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failsTheReportWhenASliceFails() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                    .reportInParallel(executor, 4)
+                    .build(new Statsd(sent));
+            final Counter counter = new Counter();
+            counter.inc(3);
+            final AtomicBoolean failing = new AtomicBoolean(true);
+            final SortedMap<String, Histogram> histograms = new TreeMap<String, Histogram>();
+            for (int i = 0; i < 256; i++) {
+                histograms.put(String.format("histogram%03d", i),
+                        new Histogram(new UniformReservoir()) {
+                            @Override
+                            public Snapshot getSnapshot() {
+                                if (failing.get()) {
+                                    throw new IllegalStateException("broken histogram");
+                                }
+                                return super.getSnapshot();
+                            }
+                        });
+            }
+
+            try {
+                reporter.report(this.<Gauge>map(),
+                        map("counter", counter),
+                        histograms,
+                        this.<Meter>map(),
+                        this.<Timer>map());
+                fail("the slice's failure was swallowed");
+            } catch (IllegalStateException e) {
+                assertEquals("broken histogram", e.getMessage());
+            }
+            sent.clear();
+
+            failing.set(false);
+            reporter.report(this.<Gauge>map(),
+                    map("counter", counter),
+                    histograms,
+                    this.<Meter>map(),
+                    this.<Timer>map());
+
+            // the failed report was not delivered, so its counter increments are sent again
+            assertTrue(lines(sent).contains("counter.count:3|c"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void waitsForTheSlicesOfAnInterruptedReport() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        try {
+            final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                    .reportInParallel(executor, 4)
+                    .build(new Statsd(sent));
+            // the first histogram of each slice holds its slice up until released
+            final CountDownLatch started = new CountDownLatch(4);
+            final CountDownLatch release = new CountDownLatch(1);
+            final AtomicBoolean slow = new AtomicBoolean(true);
+            final AtomicInteger snapshots = new AtomicInteger();
+            final SortedMap<String, Histogram> histograms = new TreeMap<String, Histogram>();
+            for (int i = 0; i < 256; i++) {
+                final boolean first = i % 64 == 0;
+                histograms.put(String.format("histogram%03d", i),
+                        new Histogram(new UniformReservoir()) {
+                            @Override
+                            public Snapshot getSnapshot() {
+                                snapshots.incrementAndGet();
+                                if (first && slow.get()) {
+                                    started.countDown();
+                                    try {
+                                        release.await(5, TimeUnit.SECONDS);
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                }
+                                return super.getSnapshot();
+                            }
+                        });
+            }
+            final AtomicBoolean interruptKept = new AtomicBoolean();
+            final Thread reporting = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    reporter.report(StatsdReporterTest.this.<Gauge>map(),
+                            StatsdReporterTest.this.<Counter>map(),
+                            histograms,
+                            StatsdReporterTest.this.<Meter>map(),
+                            StatsdReporterTest.this.<Timer>map());
+                    interruptKept.set(Thread.currentThread().isInterrupted());
+                }
+            });
+
+            reporting.start();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            reporting.interrupt();
+            reporting.join(100);
+            // the slices are still running, so the report has not returned
+            assertTrue(reporting.isAlive());
+            release.countDown();
+            reporting.join(5000);
+
+            assertFalse(reporting.isAlive());
+            assertTrue(interruptKept.get());
+            // each slice stopped after the histogram it was held on
+            assertEquals(4, snapshots.get());
+            assertEquals(0, sent.size());
+
+            // the next report is whole, with none of the interrupted report's lines
+            slow.set(false);
+            reporter.report(this.<Gauge>map(),
+                    this.<Counter>map(),
+                    histograms,
+                    this.<Meter>map(),
+                    this.<Timer>map());
+            int counts = 0;
+            for (String line : lines(sent)) {
+                if (line.matches("histogram\\d{3}\\.count:0\\|g")) {
+                    counts++;
+                }
+            }
+            assertEquals(256, counts);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sendsGlobalAndPerMetricTags() throws Exception {
+        final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .tags("env:prod", "host:web 1")
+                .tagsFor("db\\..*", "tier:db", "env:prod")
+                .build(new Statsd(sent));
+        final Counter counter = new Counter();
+        counter.inc(3);
+
+        final SortedMap<String, Gauge> gauges = new TreeMap<String, Gauge>();
+        gauges.put("db.connections", gauge(5));
+        gauges.put("web.sessions", gauge(7));
+        reporter.report(gauges,
+                map("db.queries", counter),
+                this.<Histogram>map(),
+                this.<Meter>map(),
+                this.<Timer>map());
+
+        final ByteBuffer payload = sent.payload(0);
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        assertEquals("db.connections:5|g|#env:prod,host:web-1,tier:db\n" +
+                "web.sessions:7|g|#env:prod,host:web-1\n" +
+                "db.queries.count:3|c|#env:prod,host:web-1,tier:db",
+                new String(bytes, "UTF-8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTagsWhichWouldBreakTheLineFormat() throws Exception {
+        StatsdReporter.forRegistry(registry).tags("env:prod|#x");
+    }
+
+    @Test
+    public void sendsDistributionsInsteadOfPercentiles() throws Exception {
+        final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .prefixedWith("prefix")
+                .distributions(true)
+                .build(new Statsd(sent));
+        final Histogram histogram = new Histogram(new UniformReservoir());
+        for (long value : new long[] {1, 10, 5, 5}) {
+            histogram.update(value);
+        }
+
+        reporter.report(this.<Gauge>map(),
+                this.<Counter>map(),
+                map("histogram", histogram),
+                this.<Meter>map(),
+                this.<Timer>map());
+
+        final ByteBuffer payload = sent.payload(0);
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        // each value is sent within 1% of the samples in its bucket, weighted by their number
+        assertEquals("prefix.histogram.count:4|g\n" +
+                "prefix.histogram:0.991:9.925|d\n" +
+                "prefix.histogram:5.008|d|@0.5",
+                new String(bytes, "UTF-8"));
+    }
+
+    @Test
+    public void keepsTheAccuracyOfSmallDistributionValues() throws Exception {
+        final BufferingTransport sent = new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE);
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .distributions(true)
+                .timerAttributes(EnumSet.of(StatAttribute.MAX))
+                .build(new Statsd(sent));
+        final Timer timer = new Timer();
+        timer.update(40, TimeUnit.NANOSECONDS);
+        timer.update(3, TimeUnit.MICROSECONDS);
+        timer.update(12, TimeUnit.MICROSECONDS);
+        timer.update(850, TimeUnit.MICROSECONDS);
+
+        reporter.report(this.<Gauge>map(),
+                this.<Counter>map(),
+                this.<Histogram>map(),
+                this.<Meter>map(),
+                map("timer", timer));
+
+        final Set<String> lines = lines(sent);
+        assertEquals(1, lines.size());
+        final String line = lines.iterator().next();
+        assertTrue(line, line.startsWith("timer:") && line.endsWith("|d"));
+        final String[] values = line.substring("timer:".length(), line.length() - 2).split(":");
+        // in milliseconds, each well below the two decimals of other values
+        final double[] samples = {0.00004, 0.003, 0.012, 0.85};
+        assertEquals(samples.length, values.length);
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals(line, samples[i], Double.parseDouble(values[i]), samples[i] * 0.01);
+        }
+    }
+
+    @Test
+    public void recordsMetricsAboutEachReport() throws Exception {
+        final MetricRegistry selfMetrics = new MetricRegistry();
+        final StatsdReporter reporter = StatsdReporter.forRegistry(registry)
+                .instrumentedWith(selfMetrics)
+                .build(new Statsd(new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE)));
+        final Counter counter = new Counter();
+        counter.inc();
+
+        reporter.report(map("gauge", gauge(null)),
+                map("counter", counter),
+                this.<Histogram>map(),
+                this.<Meter>map(),
+                this.<Timer>map());
+
+        assertEquals(1, selfMetrics.timer("statsd-reporter.report").getCount());
+        assertEquals(1, selfMetrics.counter("statsd-reporter.null-gauges").getCount());
+        assertEquals(1, selfMetrics.histogram("statsd-reporter.lines").getSnapshot().getMax());
+        assertEquals(1, selfMetrics.histogram("statsd-reporter.datagrams").getSnapshot().getMax());
+        assertEquals(0, selfMetrics.meter("statsd-reporter.send-failures").getCount());
+    }
+
+    @Test
+    public void removesOnlyItsOwnMetricsWhenStopped() throws Exception {
+        final MetricRegistry selfMetrics = new MetricRegistry();
+        final StatsdReporter first = StatsdReporter.forRegistry(new MetricRegistry())
+                .instrumentedWith(selfMetrics)
+                .build(new Statsd(new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE)));
+        final Timer report = selfMetrics.timer("statsd-reporter.report");
+        final StatsdReporter second = StatsdReporter.forRegistry(new MetricRegistry())
+                .instrumentedWith(selfMetrics)
+                .build(new Statsd(new BufferingTransport(Statsd.DEFAULT_MAX_PAYLOAD_SIZE)));
+        selfMetrics.counter("other.statsd-reporter.requests");
+
+        second.stop();
+
+        assertSame(report, selfMetrics.getTimers().get("statsd-reporter.report"));
+        assertTrue(selfMetrics.getCounters().containsKey("other.statsd-reporter.requests"));
+
+        first.stop();
+
+        assertEquals(Collections.singleton("other.statsd-reporter.requests"),
+                selfMetrics.getNames());
+    }
+
     @Test
     public void reportsHistograms() throws Exception {
         final Histogram histogram = mock(Histogram.class);
@@ -163,12 +671,12 @@ public class StatsdReporterTest {
         when(snapshot.getMean()).thenReturn(3.0);
         when(snapshot.getMin()).thenReturn(4L);
         when(snapshot.getStdDev()).thenReturn(5.0);
-        when(snapshot.getMedian()).thenReturn(6.0);
-        when(snapshot.get75thPercentile()).thenReturn(7.0);
-        when(snapshot.get95thPercentile()).thenReturn(8.0);
-        when(snapshot.get98thPercentile()).thenReturn(9.0);
-        when(snapshot.get99thPercentile()).thenReturn(10.0);
-        when(snapshot.get999thPercentile()).thenReturn(11.0);
+        when(snapshot.getValue(0.5)).thenReturn(6.0);
+        when(snapshot.getValue(0.75)).thenReturn(7.0);
+        when(snapshot.getValue(0.95)).thenReturn(8.0);
+        when(snapshot.getValue(0.98)).thenReturn(9.0);
+        when(snapshot.getValue(0.99)).thenReturn(10.0);
+        when(snapshot.getValue(0.999)).thenReturn(11.0);
 
         when(histogram.getSnapshot()).thenReturn(snapshot);
 
@@ -180,17 +688,17 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.histogram.count", "1", Statsd.StatType.GAUGE);
-        inOrder.verify(statsd).send("prefix.histogram.max", "2", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.mean", "3.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.min", "4", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.stddev", "5.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.p50", "6.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.p75", "7.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.p95", "8.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.p98", "9.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.p99", "10.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.histogram.p999", "11.00", Statsd.StatType.TIMER);
+        inOrder.verify(statsd).send(name("prefix.histogram.count"), eq(1L), eq(GAUGE));
+        inOrder.verify(statsd).send(name("prefix.histogram.max"), eq(2L), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.mean"), eq(3.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.min"), eq(4L), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.stddev"), eq(5.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.p50"), eq(6.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.p75"), eq(7.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.p95"), eq(8.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.p98"), eq(9.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.p99"), eq(10.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.histogram.p999"), eq(11.0), eq(TIMER));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -213,11 +721,11 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.meter.count", "1", Statsd.StatType.GAUGE);
-        inOrder.verify(statsd).send("prefix.meter.m1_rate", "2.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.meter.m5_rate", "3.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.meter.m15_rate", "4.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.meter.mean_rate", "5.00", Statsd.StatType.TIMER);
+        inOrder.verify(statsd).send(name("prefix.meter.count"), eq(1L), eq(GAUGE));
+        inOrder.verify(statsd).send(name("prefix.meter.m1_rate"), eq(2.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.meter.m5_rate"), eq(3.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.meter.m15_rate"), eq(4.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.meter.mean_rate"), eq(5.0), eq(TIMER));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
@@ -237,13 +745,12 @@ public class StatsdReporterTest {
         when(snapshot.getMean()).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(200));
         when(snapshot.getMin()).thenReturn(TimeUnit.MILLISECONDS.toNanos(300));
         when(snapshot.getStdDev()).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(400));
-        when(snapshot.getMedian()).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(500));
-        when(snapshot.get75thPercentile()).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(600));
-        when(snapshot.get95thPercentile()).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(700));
-        when(snapshot.get98thPercentile()).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(800));
-        when(snapshot.get99thPercentile()).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(900));
-        when(snapshot.get999thPercentile()).thenReturn((double) TimeUnit.MILLISECONDS
-                .toNanos(1000));
+        when(snapshot.getValue(0.5)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(500));
+        when(snapshot.getValue(0.75)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(600));
+        when(snapshot.getValue(0.95)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(700));
+        when(snapshot.getValue(0.98)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(800));
+        when(snapshot.getValue(0.99)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(900));
+        when(snapshot.getValue(0.999)).thenReturn((double) TimeUnit.MILLISECONDS.toNanos(1000));
 
         when(timer.getSnapshot()).thenReturn(snapshot);
 
@@ -255,26 +762,41 @@ public class StatsdReporterTest {
 
         final InOrder inOrder = inOrder(statsd);
         inOrder.verify(statsd).connect();
-        inOrder.verify(statsd).send("prefix.timer.max", "100.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.mean", "200.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.min", "300.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.stddev", "400.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.p50", "500.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.p75", "600.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.p95", "700.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.p98", "800.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.p99", "900.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.p999", "1000.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.count", "1", Statsd.StatType.GAUGE);
-        inOrder.verify(statsd).send("prefix.timer.m1_rate", "3.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.m5_rate", "4.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.m15_rate", "5.00", Statsd.StatType.TIMER);
-        inOrder.verify(statsd).send("prefix.timer.mean_rate", "2.00", Statsd.StatType.TIMER);
+        inOrder.verify(statsd).send(name("prefix.timer.max"), eq(100.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.mean"), eq(200.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.min"), eq(300.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.stddev"), eq(400.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.p50"), eq(500.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.p75"), eq(600.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.p95"), eq(700.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.p98"), eq(800.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.p99"), eq(900.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.p999"), eq(1000.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.count"), eq(1L), eq(GAUGE));
+        inOrder.verify(statsd).send(name("prefix.timer.m1_rate"), eq(3.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.m5_rate"), eq(4.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.m15_rate"), eq(5.0), eq(TIMER));
+        inOrder.verify(statsd).send(name("prefix.timer.mean_rate"), eq(2.0), eq(TIMER));
         inOrder.verify(statsd).close();
 
         verifyNoMoreInteractions(statsd);
     }
 
+    private static byte[] name(String name) {
+        return aryEq(name.getBytes());
+    }
+
+    private static Set<String> lines(BufferingTransport sent) throws Exception {
+        final Set<String> lines = new HashSet<String>();
+        for (int i = 0; i < sent.size(); i++) {
+            final ByteBuffer payload = sent.payload(i);
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            lines.addAll(Arrays.asList(new String(bytes, "UTF-8").split("\n")));
+        }
+        return lines;
+    }
+
     private <T> SortedMap<String, T> map() {
         return new TreeMap<String, T>();
     }
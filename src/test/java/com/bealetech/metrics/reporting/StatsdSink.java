@@ -0,0 +1,281 @@
+package com.bealetech.metrics.reporting;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A StatsD server stand-in listening on the loopback interface, for checking what actually
+ * arrives over the wire.
+ * <p>
+ * Several threads receive datagrams from one UDP channel and parse their lines, which may carry
+ * several {@code :}-separated values, a {@code |@rate} and {@code |#tags}. Values are aggregated by
+ * name the way a StatsD server would: counters are summed and scaled up by their sample rate, and
+ * the last value of every other type is kept. Lines which cannot be parsed are counted.
+ */
+public class StatsdSink {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final DatagramChannel channel;
+    private final List<Thread> receivers = new ArrayList<Thread>();
+    private final ConcurrentMap<String, Aggregate> aggregates =
+            new ConcurrentHashMap<String, Aggregate>();
+
+    private final AtomicLong datagrams = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong values = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong maxDatagram = new AtomicLong();
+
+    public StatsdSink() throws IOException {
+        this(2);
+    }
+
+    /**
+     * @param threads the number of threads receiving and parsing datagrams
+     */
+    public StatsdSink(int threads) throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().setReceiveBufferSize(1 << 22);
+        channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        for (int i = 0; i < threads; i++) {
+            final Thread receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive();
+                }
+            }, "statsd-sink-" + i);
+            receiver.setDaemon(true);
+            receiver.start();
+            receivers.add(receiver);
+        }
+    }
+
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    public long getDatagrams() {
+        return datagrams.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getLines() {
+        return lines.get();
+    }
+
+    /**
+     * Returns the number of values received, counting each value of a multi-value line.
+     */
+    public long getValues() {
+        return values.get();
+    }
+
+    public long getMalformedLines() {
+        return malformed.get();
+    }
+
+    public long getMaxDatagramSize() {
+        return maxDatagram.get();
+    }
+
+    /**
+     * Waits until at least the given number of lines have been received.
+     *
+     * @return whether they were received before the timeout
+     */
+    public boolean awaitLines(long count, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (lines.get() < count) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until no datagram has arrived for the given time, such as after the last report of
+     * a run whose losses are unknown.
+     */
+    public void awaitQuiet(long quiet, TimeUnit unit) throws InterruptedException {
+        long seen;
+        do {
+            seen = datagrams.get();
+            unit.sleep(quiet);
+        } while (datagrams.get() != seen);
+    }
+
+    /**
+     * Returns the names of every metric received.
+     */
+    public List<String> getNames() {
+        return new ArrayList<String>(aggregates.keySet());
+    }
+
+    /**
+     * Returns the type of the last line received for the given name, or {@code null}.
+     */
+    public String getType(String name) {
+        final Aggregate aggregate = aggregates.get(name);
+        return aggregate == null ? null : aggregate.type();
+    }
+
+    /**
+     * Returns the sum of a counter's values, each scaled up by its sample rate.
+     */
+    public double getSum(String name) {
+        final Aggregate aggregate = aggregates.get(name);
+        return aggregate == null ? 0 : aggregate.sum();
+    }
+
+    /**
+     * Returns the last value received for the given name, or {@code NaN}.
+     */
+    public double getLast(String name) {
+        final Aggregate aggregate = aggregates.get(name);
+        return aggregate == null ? Double.NaN : aggregate.last();
+    }
+
+    /**
+     * Returns the number of values received for the given name.
+     */
+    public long getCount(String name) {
+        final Aggregate aggregate = aggregates.get(name);
+        return aggregate == null ? 0 : aggregate.count();
+    }
+
+    public void close() throws InterruptedException {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (Thread receiver : receivers) {
+            receiver.join(TimeUnit.SECONDS.toMillis(1));
+        }
+    }
+
+    private void receive() {
+        final ByteBuffer buffer = ByteBuffer.allocate(Statsd.MAX_UDP_PAYLOAD_SIZE);
+        try {
+            while (true) {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                final int size = buffer.remaining();
+                datagrams.incrementAndGet();
+                bytes.addAndGet(size);
+                long max = maxDatagram.get();
+                while (size > max && !maxDatagram.compareAndSet(max, size)) {
+                    max = maxDatagram.get();
+                }
+                for (String line : new String(buffer.array(), 0, size, UTF_8).split("\n")) {
+                    if (line.length() > 0) {
+                        parse(line);
+                    }
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // the sink was closed
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void parse(String line) {
+        try {
+            record(line);
+        } finally {
+            // counted only once recorded, so that awaitLines sees everything it waited for
+            lines.incrementAndGet();
+        }
+    }
+
+    private void record(String line) {
+        final String[] fields = line.split("\\|");
+        final int colon = fields[0].indexOf(':');
+        if (fields.length < 2 || colon <= 0) {
+            malformed.incrementAndGet();
+            return;
+        }
+
+        try {
+            final String type = fields[1];
+            double rate = 1;
+            for (int i = 2; i < fields.length; i++) {
+                if (fields[i].startsWith("@")) {
+                    rate = Double.parseDouble(fields[i].substring(1));
+                } else if (!fields[i].startsWith("#")) {
+                    throw new NumberFormatException(fields[i]);
+                }
+            }
+            final String[] parts = fields[0].substring(colon + 1).split(":");
+            final double[] parsed = new double[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                parsed[i] = Double.parseDouble(parts[i]);
+            }
+
+            final String name = fields[0].substring(0, colon);
+            Aggregate aggregate = aggregates.get(name);
+            if (aggregate == null) {
+                final Aggregate created = new Aggregate();
+                aggregate = aggregates.putIfAbsent(name, created);
+                if (aggregate == null) {
+                    aggregate = created;
+                }
+            }
+            aggregate.add(type, parsed, "c".equals(type) ? 1 / rate : 1);
+            values.addAndGet(parsed.length);
+        } catch (NumberFormatException e) {
+            malformed.incrementAndGet();
+        }
+    }
+
+    private static class Aggregate {
+        private String type;
+        private double sum;
+        private double last;
+        private long count;
+
+        synchronized void add(String type, double[] values, double scale) {
+            this.type = type;
+            for (double value : values) {
+                sum += value * scale;
+                last = value;
+                count++;
+            }
+        }
+
+        synchronized String type() {
+            return type;
+        }
+
+        synchronized double sum() {
+            return sum;
+        }
+
+        synchronized double last() {
+            return last;
+        }
+
+        synchronized long count() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StatsdTest {
+    private DatagramSocket server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void sendsAllLinesInOneDatagramWhenTheyFit() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort());
+
+        statsd.connect();
+        statsd.send("foo", "1", Statsd.StatType.COUNTER);
+        statsd.send("bar baz", "2.00", Statsd.StatType.TIMER);
+        statsd.close();
+
+        assertEquals("foo:1|c\nbar-baz:2.00|ms", receive());
+        assertEquals(1, statsd.getPacketsSent());
+        assertEquals(23, statsd.getBytesSent());
+    }
+
+    @Test
+    public void splitsLinesAcrossDatagramsAtTheMaximumPayloadSize() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort(), 20);
+
+        statsd.connect();
+        statsd.send("aaaa", "1", Statsd.StatType.GAUGE);
+        statsd.send("bbbb", "2", Statsd.StatType.GAUGE);
+        statsd.send("cccc", "3", Statsd.StatType.GAUGE);
+        statsd.close();
+
+        final List<String> packets = new ArrayList<String>();
+        packets.add(receive());
+        packets.add(receive());
+
+        assertEquals("aaaa:1|g\nbbbb:2|g", packets.get(0));
+        assertEquals("cccc:3|g", packets.get(1));
+        assertEquals(2, statsd.getPacketsSent());
+        assertEquals(3, statsd.getLinesSent());
+        assertEquals(0, statsd.getOversizeDrops());
+    }
+
+    @Test
+    public void continuesMultiValueLinesWhichWouldNotFitInADatagram() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort(), 24);
+
+        statsd.connect();
+        statsd.send(StatsdLineEncoder.encodeName("t"), new double[] {1.25, 2.25, 3.25, 4.25}, 0,
+                4, 3, Statsd.StatType.DISTRIBUTION, SampleRate.ofWeight(2), Tags.NONE);
+        statsd.close();
+
+        assertEquals("t:1.25:2.25:3.25|d|@0.5", receive());
+        assertEquals("t:4.25|d|@0.5", receive());
+        assertEquals(2, statsd.getLinesSent());
+        assertEquals(0, statsd.getOversizeDrops());
+    }
+
+    @Test
+    public void sendsMultiValueLinesWithTheGivenSignificantDigits() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort());
+
+        statsd.connect();
+        statsd.send(StatsdLineEncoder.encodeName("t"),
+                new double[] {0.012, 0.0049, 0.000012345, -1.5, 0, 123456.7, 99960, 1e20}, 0, 8,
+                3, Statsd.StatType.DISTRIBUTION, SampleRate.ALWAYS, Tags.NONE);
+        statsd.close();
+
+        assertEquals("t:0.012:0.0049:0.0000123:-1.5:0:123000:100000:100000000000000000000|d",
+                receive());
+    }
+
+    @Test
+    public void pacesTheDatagramsOfABatch() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort(), 20);
+        statsd.pace(TimeUnit.MILLISECONDS.toNanos(10));
+
+        final long start = System.nanoTime();
+        statsd.connect();
+        for (int i = 0; i < 5; i++) {
+            statsd.send("aaaa" + i, "1", Statsd.StatType.GAUGE);
+            statsd.send("bbbb" + i, "2", Statsd.StatType.GAUGE);
+        }
+        statsd.close();
+        final long elapsed = System.nanoTime() - start;
+
+        // the fifth datagram waits four intervals; allow for coarse timers rather than timing
+        // the waits exactly
+        assertEquals(5, statsd.getPacketsSent());
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(30));
+    }
+
+    @Test
+    public void countsDatagramsWhichCouldNotBeSent() throws Exception {
+        final Statsd statsd = new Statsd(new StatsdTransport() {
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void send(ByteBuffer payload) throws IOException {
+                throw new IOException("unreachable");
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 10);
+
+        statsd.connect();
+        statsd.send("aaaa", "1", Statsd.StatType.GAUGE);
+        statsd.send("bbbb", "2", Statsd.StatType.GAUGE);
+        try {
+            statsd.close();
+            fail("expected the failed batch to be reported");
+        } catch (IOException e) {
+            assertEquals("unreachable", e.getMessage());
+        }
+
+        assertEquals(2, statsd.getSendFailures());
+        assertEquals(0, statsd.getPacketsSent());
+        assertEquals(0, statsd.getLinesSent());
+    }
+
+    @Test
+    public void dropsLinesLargerThanTheMaximumPayloadSize() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort(), 10);
+
+        statsd.connect();
+        statsd.send("a.very.long.metric.name", "1", Statsd.StatType.GAUGE);
+        statsd.send("short", "1", Statsd.StatType.GAUGE);
+        statsd.close();
+
+        assertEquals("short:1|g", receive());
+        assertEquals(1, statsd.getPacketsSent());
+        assertEquals(1, statsd.getOversizeDrops());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPayloadsLargerThanAUdpDatagram() throws Exception {
+        new Statsd("127.0.0.1", server.getLocalPort(), Statsd.MAX_UDP_PAYLOAD_SIZE + 1);
+    }
+
+    @Test
+    public void sendsNothingForAnEmptyReport() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort());
+
+        statsd.connect();
+        statsd.close();
+
+        assertEquals(0, statsd.getPacketsSent());
+        assertEquals(0, statsd.getBytesSent());
+    }
+
+    @Test
+    public void formatsPrimitiveValues() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort());
+
+        statsd.connect();
+        statsd.send("long", -1234567890123L, Statsd.StatType.COUNTER);
+        statsd.send("min", Long.MIN_VALUE, Statsd.StatType.GAUGE);
+        statsd.send("double", 1.125, Statsd.StatType.TIMER);
+        statsd.send("rounded", 2.675001, Statsd.StatType.TIMER);
+        statsd.send("negative", -1.5, Statsd.StatType.GAUGE);
+        statsd.send("zero", -0.001, Statsd.StatType.GAUGE);
+        statsd.send("nan", Double.NaN, Statsd.StatType.GAUGE);
+        statsd.close();
+
+        assertEquals("long:-1234567890123|c\n" +
+                "min:-9223372036854775808|g\n" +
+                "double:1.13|ms\n" +
+                "rounded:2.68|ms\n" +
+                "negative:-1.50|g\n" +
+                "zero:0.00|g\n" +
+                "nan:NaN|g", receive());
+    }
+
+    @Test
+    public void annotatesSampledValuesWithTheirRate() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort());
+
+        statsd.connect();
+        statsd.send("hits", 1, Statsd.StatType.COUNTER, 0.1);
+        statsd.send("latency", 1.5, Statsd.StatType.TIMER, 0.0001);
+        statsd.send("all", 2, Statsd.StatType.COUNTER, 1.0);
+        statsd.close();
+
+        assertEquals("hits:1|c|@0.1\n" +
+                "latency:1.50|ms|@0.0001\n" +
+                "all:2|c", receive());
+    }
+
+    @Test
+    public void encodesARepeatedSampleRateOnce() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort());
+
+        final SampleRate rate = statsd.sampleRate(0.1);
+        assertSame(rate, statsd.sampleRate(0.1));
+        assertEquals(0.5, statsd.sampleRate(0.5).rate, 0);
+        assertSame(SampleRate.ALWAYS, statsd.sampleRate(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSampleRatesAboveOne() throws Exception {
+        new Statsd("127.0.0.1", server.getLocalPort()).send("hits", 1, Statsd.StatType.COUNTER, 2);
+    }
+
+    @Test
+    public void sanitizesNamesWithoutChangingNonAsciiCharacters() throws Exception {
+        final Statsd statsd = new Statsd("127.0.0.1", server.getLocalPort());
+
+        statsd.connect();
+        statsd.send(" caf\u00e9 \t\n r\u00e9sum\u00e9 ", "1", Statsd.StatType.COUNTER);
+        statsd.close();
+
+        assertEquals("-caf\u00e9-r\u00e9sum\u00e9-:1|c", receive());
+    }
+
+    @Test
+    public void keepsAChannelTransportOpenAcrossReports() throws Exception {
+        final DatagramChannelTransport transport =
+                new DatagramChannelTransport("127.0.0.1", server.getLocalPort());
+        final Statsd statsd = new Statsd(transport);
+
+        statsd.connect();
+        statsd.send("foo", "1", Statsd.StatType.COUNTER);
+        statsd.close();
+
+        statsd.connect();
+        statsd.send("bar", "2", Statsd.StatType.COUNTER);
+        statsd.close();
+
+        statsd.shutdown();
+
+        assertEquals("foo:1|c", receive());
+        assertEquals("bar:2|c", receive());
+        assertEquals(2, statsd.getPacketsSent());
+        assertEquals(0, transport.getDnsFailures());
+        assertEquals(0, transport.getSendFailures());
+    }
+
+    private String receive() throws Exception {
+        final byte[] buffer = new byte[Statsd.MAX_UDP_PAYLOAD_SIZE];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+    }
+}
@@ -0,0 +1,82 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TcpTransportTest {
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void sendsNewlineTerminatedLinesOverOneConnection() throws Exception {
+        final TcpTransport transport = new TcpTransport("127.0.0.1", server.getLocalPort());
+        final Statsd statsd = new Statsd(transport, 20);
+
+        statsd.connect();
+        statsd.send("aaaa", 1, Statsd.StatType.COUNTER);
+        statsd.send("bbbb", 2, Statsd.StatType.COUNTER);
+        statsd.send("cccc", 3, Statsd.StatType.COUNTER);
+        statsd.close();
+
+        statsd.connect();
+        statsd.send("dddd", 4, Statsd.StatType.GAUGE);
+        statsd.close();
+
+        final Socket client = server.accept();
+        client.setSoTimeout(1000);
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+        assertEquals("aaaa:1|c", reader.readLine());
+        assertEquals("bbbb:2|c", reader.readLine());
+        assertEquals("cccc:3|c", reader.readLine());
+        assertEquals("dddd:4|g", reader.readLine());
+
+        statsd.shutdown();
+        assertNull(reader.readLine());
+        client.close();
+        assertEquals(1, transport.getConnects());
+    }
+
+    @Test
+    public void backsOffAfterAFailedConnection() throws Exception {
+        final int port = server.getLocalPort();
+        server.close();
+        final TcpTransport transport = new TcpTransport("127.0.0.1", port,
+                StreamTransport.DEFAULT_BUFFER_SIZE, 1, 1, TimeUnit.HOURS);
+
+        try {
+            transport.connect();
+            fail("connected to a closed port");
+        } catch (IOException expected) {
+        }
+        try {
+            transport.connect();
+            fail("reconnected before the backoff passed");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(1, transport.getConnectFailures());
+        assertEquals(0, transport.getConnects());
+    }
+}
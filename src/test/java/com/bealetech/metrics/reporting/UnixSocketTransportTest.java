@@ -0,0 +1,114 @@
+package com.bealetech.metrics.reporting;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UnixSocketTransportTest {
+    private File path;
+    private ServerSocketChannel server;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(UnixSocketTransport.isSupported());
+        path = File.createTempFile("statsd", ".sock");
+        path.delete();
+        server = bind(path.getPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+        if (path != null) {
+            path.delete();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void sendsNewlineTerminatedLinesOverOneConnection() throws Exception {
+        final UnixSocketTransport transport = new UnixSocketTransport(path.getPath());
+        final Statsd statsd = new Statsd(transport, 20);
+
+        statsd.connect();
+        statsd.send("aaaa", 1, Statsd.StatType.COUNTER);
+        statsd.send("bbbb", 2, Statsd.StatType.COUNTER);
+        statsd.send("cccc", 3, Statsd.StatType.COUNTER);
+        statsd.close();
+
+        final SocketChannel client = server.accept();
+        assertEquals("aaaa:1|c\nbbbb:2|c\ncccc:3|c\n", read(client, 27));
+
+        statsd.shutdown();
+        client.close();
+        assertEquals(1, transport.getConnects());
+    }
+
+    @Test(timeout = 5000)
+    public void reconnectsAfterThePeerGoesAway() throws Exception {
+        final UnixSocketTransport transport = new UnixSocketTransport(path.getPath(),
+                StreamTransport.DEFAULT_BUFFER_SIZE, 1, 1, TimeUnit.MILLISECONDS);
+        final Statsd statsd = new Statsd(transport);
+
+        statsd.connect();
+        statsd.send("aaaa", 1, Statsd.StatType.COUNTER);
+        statsd.close();
+        final SocketChannel first = server.accept();
+        assertEquals("aaaa:1|c\n", read(first, 9));
+        first.close();
+
+        // the write to the closed peer fails and drops the connection
+        while (transport.getSendFailures() == 0) {
+            statsd.connect();
+            statsd.send("bbbb", 2, Statsd.StatType.COUNTER);
+            statsd.close();
+        }
+        Thread.sleep(10);
+
+        statsd.connect();
+        statsd.send("cccc", 3, Statsd.StatType.COUNTER);
+        statsd.close();
+        final SocketChannel second = server.accept();
+        assertEquals("cccc:3|c\n", read(second, 9));
+
+        statsd.shutdown();
+        second.close();
+        assertEquals(2, transport.getConnects());
+    }
+
+    private static ServerSocketChannel bind(String path) throws Exception {
+        // Unix domain server channels need Java 16, so they are opened reflectively
+        final Object unix =
+                Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+        final ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class
+                .getMethod("open", Class.forName("java.net.ProtocolFamily"))
+                .invoke(null, unix);
+        final SocketAddress address = (SocketAddress)
+                Class.forName("java.net.UnixDomainSocketAddress")
+                        .getMethod("of", String.class)
+                        .invoke(null, path);
+        channel.bind(address);
+        return channel;
+    }
+
+    private static String read(SocketChannel channel, int length) throws Exception {
+        final ByteBuffer bytes = ByteBuffer.allocate(length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes) < 0) {
+                break;
+            }
+        }
+        return new String(bytes.array(), 0, bytes.position(), "UTF-8");
+    }
+}